@@ -0,0 +1,39 @@
+package example.streaming.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the selected benchmarks (all by default) once per thread count: 1, 2, 4, ... up to the number of CPUs.
+// Any other JMH command line options can be passed through, e.g. "-p futures=10 HandleFuture".
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        for (int threads : threadCounts(Runtime.getRuntime().availableProcessors())) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(threads);
+            if (commandLine.getIncludes().isEmpty()) {
+                options.include(BenchmarkRunner.class.getPackage().getName() + ".*Benchmark");
+            }
+            new Runner(options.build()).run();
+        }
+    }
+
+    private static List<Integer> threadCounts(int max) {
+        List<Integer> counts = new ArrayList<>();
+        for (int threads = 1; threads < max; threads *= 2) {
+            counts.add(threads);
+        }
+        counts.add(max);
+        return counts;
+    }
+
+}
@@ -0,0 +1,90 @@
+package example.streaming.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import example.streaming.util.future.ExecutorMode;
+
+// Many tasks blocked on a simulated downstream call at once, as happens for model attributes and @Async methods
+// under load. Compares the cached thread pool against a virtual thread per task (which requires Java 21+).
+// Besides the time taken, reports the peak number of platform threads (add "-prof gc" for allocation rates).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class BlockedTasksBenchmark {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    @Param({"CACHED", "VIRTUAL"})
+    public ExecutorMode mode;
+
+    @Param({"100", "1000", "5000"})
+    public int blockedTasks;
+
+    @Param({"50"})
+    public int downstreamMillis;
+
+    private ExecutorService executor;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        executor = mode.create();
+        THREADS.resetPeakThreadCount();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public void runBlockedTasks(Resources resources) throws Exception {
+        List<Future<?>> futures = new ArrayList<>(blockedTasks);
+        for (int i = 0; i < blockedTasks; i++) {
+            futures.add(executor.submit(() -> {
+                Thread.sleep(downstreamMillis);
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        resources.peakPlatformThreads = Math.max(resources.peakPlatformThreads, THREADS.getPeakThreadCount());
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Resources {
+        public int peakPlatformThreads;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            peakPlatformThreads = 0;
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package example.streaming.bench;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import example.streaming.freemarker.custom.Utf8ChunkWriter;
+import freemarker.template.Template;
+
+// Encoding a mostly static layout with a charset encoder (like the servlet PrintWriter)
+// versus Utf8ChunkWriter with its pre-encoded static text. Run with -prof gc to compare allocation.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputPathBenchmark {
+
+    public enum OutputPath { ENCODING_WRITER, UTF8_CHUNKS }
+
+    @Param({"ENCODING_WRITER", "UTF8_CHUNKS"})
+    public OutputPath path;
+
+    @Param({"4", "64"})
+    public int staticKilobytes;
+
+    private static final int FUTURES = 10;
+
+    private RenderFixture fixture;
+    private Template template;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = new RenderFixture();
+        template = fixture.layoutTemplate(staticKilobytes, FUTURES);
+    }
+
+    @Benchmark
+    public void render(Blackhole blackhole) throws Exception {
+        Map<String, Object> model = fixture.model(FUTURES);
+        CountingOutputStream bytes = new CountingOutputStream();
+        if (path == OutputPath.UTF8_CHUNKS) {
+            Utf8ChunkWriter out = new Utf8ChunkWriter(bytes);
+            try {
+                template.process(model, out);
+            } finally {
+                out.release();
+            }
+        } else {
+            Writer out = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+            template.process(model, out);
+            out.flush();
+        }
+        blackhole.consume(bytes.count);
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+}
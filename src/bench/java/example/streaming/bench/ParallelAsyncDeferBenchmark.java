@@ -0,0 +1,67 @@
+package example.streaming.bench;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import example.streaming.bench.RenderFixture.ChunkSink;
+import freemarker.template.Template;
+
+// renderAsyncDeferred with CPU heavy bodies that are all ready, rendered one after another or in parallel.
+// Parallel rendering only pays off given spare cores (compare with -t 1 and the number of cores).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelAsyncDeferBenchmark {
+
+    @Param({"10", "100"})
+    public int deferredBlocks;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private ExecutorService executor;
+    private RenderFixture fixture;
+    private Template template;
+
+    @Setup
+    public void setUp() throws Exception {
+        executor = parallel ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()) : null;
+        fixture = new RenderFixture(executor);
+        template = fixture.cpuHeavyAsyncDeferTemplate(deferredBlocks, 500);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public void renderAsyncDeferred(Blackhole blackhole) throws Exception {
+        Map<String, Object> model = fixture.trackedModel(deferredBlocks);
+        ChunkSink out = new ChunkSink();
+        blackhole.consume(RenderFixture.render(template, model, out));
+        blackhole.consume(out.flushes);
+    }
+
+}
@@ -0,0 +1,51 @@
+package example.streaming.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import example.streaming.bench.RenderFixture.ChunkSink;
+import freemarker.template.Template;
+
+// DeferHtmlDirective fallbacks followed by RenderDeferredHtmlDirective.render of every queued body.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderDeferredBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int deferredBlocks;
+
+    private RenderFixture fixture;
+    private Template template;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = new RenderFixture();
+        template = fixture.deferTemplate(deferredBlocks);
+    }
+
+    @Benchmark
+    public void renderDeferred(Blackhole blackhole) throws Exception {
+        Map<String, Object> model = fixture.model(deferredBlocks);
+        ChunkSink out = new ChunkSink();
+        blackhole.consume(RenderFixture.render(template, model, out));
+        blackhole.consume(out.flushes);
+    }
+
+}
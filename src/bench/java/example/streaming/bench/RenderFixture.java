@@ -0,0 +1,190 @@
+package example.streaming.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import example.streaming.freemarker.custom.DeferableObjectWrapper;
+import example.streaming.freemarker.custom.FlushPolicies;
+import example.streaming.freemarker.custom.FlushingWriter;
+import example.streaming.freemarker.custom.TrackedModelFutures;
+import example.streaming.freemarker.custom.Utf8ChunkWriter;
+import example.streaming.freemarker.custom.directive.AsyncDeferHtmlDirective;
+import example.streaming.freemarker.custom.directive.AsyncRenderDeferredHtmlDirective;
+import example.streaming.freemarker.custom.directive.DeferHtmlDirective;
+import example.streaming.freemarker.custom.directive.FlushBoundaryDirective;
+import example.streaming.freemarker.custom.directive.RenderDeferredHtmlDirective;
+import example.streaming.freemarker.custom.directive.Streaming;
+import freemarker.core.Environment;
+import freemarker.core.HTMLOutputFormat;
+import freemarker.ext.servlet.FreemarkerServlet;
+import freemarker.ext.servlet.HttpRequestHashModel;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateExceptionHandler;
+
+// Builds templates and data models the same way the application does (see FreeMarkerConfig and
+// application.properties) so that the benchmarks exercise the real directives and object wrapper, and render through
+// the same writers as CustomFreeMarkerView (a FlushingWriter with the default flush policy over a Utf8ChunkWriter).
+final class RenderFixture {
+
+    static final String FUTURE_PREFIX = "myData";
+    // No settings, so each view gets the default policy, as with application.properties.
+    private static final FlushPolicies FLUSH_POLICIES = new FlushPolicies(key -> null);
+
+    private final Configuration configuration;
+    private final DeferableObjectWrapper objectWrapper;
+
+    RenderFixture() {
+        this(null);
+    }
+
+    // With a parallelRenderExecutor, ready asyncDefer bodies are rendered concurrently on it.
+    RenderFixture(ExecutorService parallelRenderExecutor) {
+        configuration = new Configuration(Configuration.VERSION_2_3_32);
+        objectWrapper = new DeferableObjectWrapper(Configuration.VERSION_2_3_32);
+        configuration.setObjectWrapper(objectWrapper);
+        configuration.setOutputFormat(HTMLOutputFormat.INSTANCE);
+        configuration.setDefaultEncoding("UTF-8");
+        configuration.setLogTemplateExceptions(false);
+        configuration.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+        configuration.setSharedVariable("atom", new FlushBoundaryDirective());
+        configuration.setSharedVariable("defer", new DeferHtmlDirective());
+        configuration.setSharedVariable("renderDeferred", new RenderDeferredHtmlDirective());
+        configuration.setSharedVariable("asyncDefer", new AsyncDeferHtmlDirective());
+        configuration.setSharedVariable("renderAsyncDeferred", new AsyncRenderDeferredHtmlDirective(false, parallelRenderExecutor));
+        configuration.setSharedVariable("disallowAutoStreaming", Streaming.disallowAutoStreamingDirective());
+    }
+
+    Template template(String name, String source) throws IOException {
+        return new Template(name, new StringReader(source), configuration);
+    }
+
+    // Each future is read once, separated by some static markup.
+    Template futuresTemplate(int futures) throws IOException {
+        return template("futures", repeat(futures, i -> "<li><div>${" + FUTURE_PREFIX + i + "}</div></li>\n"));
+    }
+
+    Template atomsTemplate(int futures) throws IOException {
+        return template("atoms", repeat(futures, i -> "<@atom><li><div>${" + FUTURE_PREFIX + i + "}</div></li></@atom>\n"));
+    }
+
+    Template deferTemplate(int blocks) throws IOException {
+        return template("defer",
+                repeat(blocks, i -> "<li><@defer><div>${" + FUTURE_PREFIX + i + "}</div></@defer></li>\n") +
+                "<@renderDeferred />\n" +
+                "<#macro sharedDeferFallback>Loading...</#macro>");
+    }
+
+    Template asyncDeferTemplate(int blocks) throws IOException {
+        return template("asyncDefer",
+                repeat(blocks, i -> "<li><@asyncDefer dependencies=\"" + FUTURE_PREFIX + i + "\">" +
+                        "<div>${" + FUTURE_PREFIX + i + "}</div></@asyncDefer></li>\n") +
+                "<@renderAsyncDeferred />\n" +
+                "<#macro sharedDeferFallback>Loading...</#macro>");
+    }
+
+    // Like asyncDeferTemplate, but with each body costing some CPU to render.
+    Template cpuHeavyAsyncDeferTemplate(int blocks, int iterations) throws IOException {
+        return template("cpuHeavyAsyncDefer",
+                repeat(blocks, i -> "<li><@asyncDefer dependencies=\"" + FUTURE_PREFIX + i + "\">" +
+                        "<div>${" + FUTURE_PREFIX + i + "}</div>" +
+                        "<#list 1.." + iterations + " as n><span>${(n * n)?string('0.00')}</span></#list>" +
+                        "</@asyncDefer></li>\n") +
+                "<@renderAsyncDeferred />\n" +
+                "<#macro sharedDeferFallback>Loading...</#macro>");
+    }
+
+    // A mostly static layout: blocks of markup around each future read.
+    Template layoutTemplate(int staticKilobytes, int futures) throws IOException {
+        StringBuilder markup = new StringBuilder();
+        while (markup.length() < staticKilobytes * 1024 / Math.max(futures, 1)) {
+            markup.append("<div class=\"card\"><h2 class=\"card-title\">Static heading</h2>")
+                    .append("<p class=\"card-body\">Some static copy that doesn't change between requests.</p></div>\n");
+        }
+        return template("layout", repeat(futures, i -> markup + "<li><div>${" + FUTURE_PREFIX + i + "}</div></li>\n"));
+    }
+
+    // Completed futures so that only the overhead of the render pipeline is measured.
+    Map<String, Object> model(int futures) {
+        Map<String, Object> model = new HashMap<>();
+        for (int i = 0; i < futures; i++) {
+            model.put(FUTURE_PREFIX + i, CompletableFuture.completedFuture("Work done " + i));
+        }
+        return model;
+    }
+
+    // Model exposing the request, as done by FreeMarkerView, with future tracking set up like CustomFreeMarkerView.
+    @SuppressWarnings("unchecked")
+    Map<String, Object> trackedModel(int futures) {
+        Map<String, Object> model = model(futures);
+        TrackedModelFutures tracking = new TrackedModelFutures();
+        tracking.addCompletableFutures(model.entrySet().stream()
+                .map(entry -> new AbstractMap.SimpleImmutableEntry<>(
+                        entry.getKey(), (CompletableFuture<Object>) entry.getValue())));
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setAttribute(TrackedModelFutures.KEY, tracking);
+        model.put(FreemarkerServlet.KEY_REQUEST,
+                new HttpRequestHashModel(request, new MockHttpServletResponse(), objectWrapper));
+        return model;
+    }
+
+    static long render(Template template, Map<String, Object> model, ChunkSink sink)
+            throws IOException, TemplateException {
+        Utf8ChunkWriter chunkWriter = new Utf8ChunkWriter(sink);
+        FlushingWriter out = new FlushingWriter(chunkWriter, FLUSH_POLICIES.getPolicy(template.getName()),
+                FLUSH_POLICIES.getStatistics(template.getName()), () -> model.values().stream()
+                        .anyMatch(value -> value instanceof Future && !((Future<?>) value).isDone()));
+        try {
+            Environment env = template.createProcessingEnvironment(model, out);
+            out.install(env);
+            env.process();
+            out.finish();
+        } finally {
+            chunkWriter.release();
+        }
+        sink.flush();
+        return sink.bytes;
+    }
+
+    private static String repeat(int count, IntFunction<String> item) {
+        StringBuilder builder = new StringBuilder("<!DOCTYPE html><html><head><title>Bench</title></head><body><ul>\n");
+        IntStream.range(0, count).mapToObj(item).forEach(builder::append);
+        return builder.append("</ul><div>Page finished!</div></body></html>").toString();
+    }
+
+
+    // Stand-in for the servlet response's OutputStream: counts the bytes written and the flushes (i.e. chunks sent).
+    static final class ChunkSink extends OutputStream {
+        long bytes;
+        int flushes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+package example.streaming.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import example.streaming.StreamingApplication;
+import example.streaming.freemarker.custom.FlushPolicies;
+import example.streaming.freemarker.custom.FragmentCache;
+import example.streaming.freemarker.custom.ShellCache;
+import example.streaming.service.SimulatedLatency;
+import example.streaming.util.future.ResultCache;
+import example.streaming.util.future.SingleFlightGroup;
+
+/**
+ * Drives the example endpoints with many concurrent clients against an embedded server
+ * and reports time-to-first-byte, time-to-each-chunk and total time percentiles.
+ * <p>
+ * Harness options: {@code --clients=50 --requests=200 --endpoints=/load/streaming,/futures/basic}.
+ * Any other arguments are passed to the application, which allows simulating production-like downstream latency:
+ * {@code --example.latency.blocking.data1="log-normal(3500, 0.5) fail(0.01)"}.
+ * Downstream calls still running after an endpoint's pages have all finished (e.g. cut short by
+ * {@code --example.deadline.default=1s}) are reported as leaked.
+ * <pre>
+ * ./mvnw -Pbench test-compile exec:exec -Dbench.mainClass=example.streaming.load.LoadHarness -Dbench.args="--clients=100"
+ * </pre>
+ */
+public class LoadHarness {
+
+    private static final List<String> ALL_ENDPOINTS = Arrays.asList(
+            "/load/traditional", "/load/streaming", "/load/head-first", "/load/cached",
+            "/futures/basic", "/futures/dependencies",
+            "/blocking-futures/basic", "/blocking-futures/dependencies",
+            "/atoms", "/suspend", "/fragment-cache", "/defer", "/async-defer", "/async-defer-early", "/deadline");
+    private static final int MAX_REPORTED_CHUNKS = 8;
+    private static final String END_OF_PAGE = "</html>";
+    private static final int TAIL_LENGTH = END_OF_PAGE.length() + 64; // Allowing for trailing whitespace etc.
+    // Allowed for cancelled calls to stop, before any still running are reported as leaked.
+    private static final long LEAK_GRACE_MILLIS = 200;
+
+    public static void main(String[] args) throws Exception {
+        int clients = 50;
+        int requests = 200;
+        List<String> endpoints = ALL_ENDPOINTS;
+        List<String> appArgs = new ArrayList<>();
+        appArgs.add("--server.port=0");
+        for (String arg : args) {
+            if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(value(arg));
+            } else if (arg.startsWith("--requests=")) {
+                requests = Integer.parseInt(value(arg));
+            } else if (arg.startsWith("--endpoints=")) {
+                endpoints = Arrays.asList(value(arg).split(","));
+            } else {
+                appArgs.add(arg);
+            }
+        }
+
+        try (ConfigurableApplicationContext context =
+                     SpringApplication.run(StreamingApplication.class, appArgs.toArray(new String[0]))) {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            System.out.printf("%nLoad: %d concurrent clients, %d requests per endpoint%n", clients, requests);
+            for (String endpoint : endpoints) {
+                URL url = new URL("http", "localhost", port, endpoint);
+                long callsBefore = SimulatedLatency.getCallCount();
+                List<Sample> samples = run(url, clients, requests);
+                Thread.sleep(LEAK_GRACE_MILLIS);
+                report(endpoint, samples, SimulatedLatency.getCallCount() - callsBefore,
+                        SimulatedLatency.getInFlightCount());
+            }
+            reportFlushes(context.getBean(FlushPolicies.class));
+            System.out.printf("%n%s%n%s%n", context.getBean(ShellCache.class), context.getBean(FragmentCache.class));
+            System.out.printf("%s%n", context.getBean("mvcExecutorService")); // e.g. hybrid's promoted count
+            System.out.printf("%s%n%s%n", context.getBean(SingleFlightGroup.class), context.getBean(ResultCache.class));
+        }
+        System.exit(0); // Don't wait for idle pool threads to time out.
+    }
+
+    private static void reportFlushes(FlushPolicies flushPolicies) {
+        System.out.printf("%nFlushes per view%n");
+        flushPolicies.getAllStatistics().forEach((view, statistics) ->
+                System.out.printf("  %-24s %s%n    %s%n", view, flushPolicies.getPolicy(view), statistics));
+    }
+
+    private static String value(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+
+
+    static List<Sample> run(URL url, int clients, int requests) throws InterruptedException {
+        List<Sample> samples = new ArrayList<>(requests);
+        AtomicInteger remaining = new AtomicInteger(requests);
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        for (int i = 0; i < clients; i++) {
+            executor.execute(() -> {
+                while (remaining.getAndDecrement() > 0) {
+                    Sample sample = fetch(url);
+                    synchronized (samples) {
+                        samples.add(sample);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(1, TimeUnit.HOURS)) {
+            throw new IllegalStateException("Load run did not finish");
+        }
+        return samples;
+    }
+
+    // Each read returning data is treated as a chunk arriving, which is what a streaming page is trying to optimise.
+    static Sample fetch(URL url) {
+        Sample sample = new Sample();
+        long start = System.nanoTime();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try (InputStream in = connection.getResponseCode() < 400
+                    ? connection.getInputStream() : connection.getErrorStream()) {
+                sample.failed = connection.getResponseCode() >= 400;
+                byte[] buffer = new byte[16 * 1024];
+                // The end of the response so far, across reads, as END_OF_PAGE may be split between two.
+                // ISO-8859-1 so that a multi-byte character split between reads can't garble it.
+                String tail = "";
+                int read;
+                while (in != null && (read = in.read(buffer)) != -1) {
+                    if (read > 0) {
+                        sample.chunkNanos.add(System.nanoTime() - start);
+                        int from = Math.max(read - TAIL_LENGTH, 0);
+                        tail += new String(buffer, from, read - from, StandardCharsets.ISO_8859_1);
+                        tail = tail.substring(Math.max(tail.length() - TAIL_LENGTH, 0));
+                    }
+                }
+                // Errors after streaming has started can't change the status code,
+                // instead the exception handlers cut the page short.
+                sample.failed |= !tail.contains(END_OF_PAGE);
+            }
+        } catch (IOException e) {
+            sample.failed = true;
+        }
+        sample.totalNanos = System.nanoTime() - start;
+        return sample;
+    }
+
+
+    // calls: simulated downstream calls made, e.g. fewer than one per page when coalesced (see @SingleFlight).
+    // leaked: simulated downstream calls still running once every page has finished, i.e. that nothing will read.
+    private static void report(String endpoint, List<Sample> samples, long calls, int leaked) {
+        long failures = samples.stream().filter(sample -> sample.failed).count();
+        System.out.printf("%n%s  (%d requests, %d failed, %d downstream calls, %d leaked)%n",
+                endpoint, samples.size(), failures, calls, leaked);
+        System.out.printf("  %-12s %9s %9s %9s %9s%n", "ms", "p50", "p90", "p99", "max");
+
+        Map<String, List<Long>> rows = new LinkedHashMap<>();
+        rows.put("ttfb", new ArrayList<>());
+        for (int i = 1; i <= MAX_REPORTED_CHUNKS; i++) {
+            rows.put("chunk " + i, new ArrayList<>());
+        }
+        rows.put("total", new ArrayList<>());
+        for (Sample sample : samples) {
+            if (!sample.chunkNanos.isEmpty()) {
+                rows.get("ttfb").add(sample.chunkNanos.get(0));
+            }
+            for (int i = 0; i < Math.min(sample.chunkNanos.size(), MAX_REPORTED_CHUNKS); i++) {
+                rows.get("chunk " + (i + 1)).add(sample.chunkNanos.get(i));
+            }
+            rows.get("total").add(sample.totalNanos);
+        }
+
+        rows.forEach((name, values) -> {
+            if (values.isEmpty()) {
+                return;
+            }
+            long[] sorted = values.stream().mapToLong(Long::longValue).sorted().toArray();
+            System.out.printf("  %-12s %9.1f %9.1f %9.1f %9.1f%n", name + (sorted.length < samples.size()
+                            ? " (" + sorted.length + ")" : ""),
+                    percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), millis(sorted[sorted.length - 1]));
+        });
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return millis(sorted[Math.max(rank - 1, 0)]);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+
+    static class Sample {
+        final List<Long> chunkNanos = new ArrayList<>();
+        long totalNanos;
+        boolean failed;
+    }
+
+}
@@ -1,5 +1,6 @@
 package example.streaming;
 
+import java.time.Duration;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 
@@ -9,4 +10,16 @@ public interface AsyncModel extends Model {
 
     <T> Future<T> addAttribute(String attributeName, Callable<T> attributeValue);
 
+    // When the executor is busy, attributes with a lower priority are run first (see FairShareScheduler).
+    // Without one, it's derived from where the view template first uses the attribute, if enabled.
+    <T> Future<T> addAttribute(String attributeName, int priority, Callable<T> attributeValue);
+
+    // Concurrent requests adding an attribute with the same key share one execution of it (see SingleFlightGroup),
+    // which is started straight away, on its own thread, whatever the model's executor.
+    <T> Future<T> addAttribute(String attributeName, String key, Callable<T> attributeValue);
+
+    // As above, but the result is also cached (see ResultCache): for ttl, requests get it as an already completed
+    // Future, and for a while after that they still get it straight away whilst it's refreshed in the background.
+    <T> Future<T> addAttribute(String attributeName, String key, Duration ttl, Callable<T> attributeValue);
+
 }
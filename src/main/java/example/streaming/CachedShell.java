@@ -0,0 +1,22 @@
+package example.streaming;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Marks a handler method whose page starts with a static shell: the output before the template's first Future access
+// is the same for every request with the same locale (and key attributes). Once it has been rendered, the shell is
+// sent before the handler even runs (see ShellCache), so the method must always return the same view name, and mustn't
+// throw or redirect (which can then only abort the response, as it has already been committed as a 200).
+// A shell that reads any other model value, or request parameter or session, isn't cached (see ShellWriter.watch).
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface CachedShell {
+
+    // Request attributes (e.g. set by filters) that the shell varies by. Reads of the Request aren't checked.
+    String[] keyAttributes() default {};
+
+}
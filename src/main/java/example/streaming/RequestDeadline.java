@@ -0,0 +1,20 @@
+package example.streaming;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Overrides example.deadline.default for a handler method: how long its page has, from when the request reaches
+// the handler, for every wait on its futures (see DeadlineConfig). Once it's passed, attributes that still
+// haven't completed are cancelled and read as missing, so the template should give them defaults (${x!"..."}).
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface RequestDeadline {
+
+    // A duration such as "2s" or "500ms"; zero for no deadline.
+    String value();
+
+}
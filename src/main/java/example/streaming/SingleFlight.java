@@ -0,0 +1,18 @@
+package example.streaming;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Marks a service method whose concurrent calls with equal arguments, from any request, share one execution and
+// its result or failure (see SingleFlightGroup and SingleFlightConfig), so the downstream call it makes is made once
+// per distinct argument list rather than once per page view.
+// The method may return a CompletableFuture or CancellableFuture (e.g. from @Async), which is then shared,
+// or a value, which is computed on another thread whilst the callers wait.
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface SingleFlight {
+}
@@ -1,5 +1,6 @@
 package example.streaming.config;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -10,8 +11,6 @@ import java.util.Objects;
 import java.util.OptionalInt;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CompletionService;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -19,6 +18,7 @@ import java.util.stream.IntStream;
 
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.core.MethodParameter;
@@ -36,27 +36,49 @@ import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandl
 
 import example.streaming.AsyncModel;
 import example.streaming.freemarker.custom.TrackedModelFutures;
+import example.streaming.util.future.FairShareScheduler;
 import example.streaming.util.future.LazyDirectExecutorService;
+import example.streaming.util.future.ResultCache;
+import example.streaming.util.future.SingleFlightGroup;
 
 public class AsyncModelConfig {
 
     @Configuration
     public static class WebConfig implements WebMvcConfigurer {
         @Autowired
-        ExecutorService blockingExecutorService;
+        ExecutorService mvcExecutorService;
+        @Value("${example.async-model.max-in-flight-per-request:0}")
+        int maxInFlightPerRequest;
+        @Value("${example.async-model.max-in-flight:0}")
+        int maxInFlight;
+        @Value("${example.async-model.priority-aging:0}")
+        Duration priorityAging;
+        @Autowired
+        SingleFlightGroup singleFlightGroup;
+        @Autowired
+        ResultCache resultCache;
 
         @Override
         public void addArgumentResolvers(List<HandlerMethodArgumentResolver> argumentResolvers) {
-            argumentResolvers.add(new AsyncModelArgumentResolver(blockingExecutorService));
+            argumentResolvers.add(new AsyncModelArgumentResolver(mvcExecutorService,
+                    new FairShareScheduler(mvcExecutorService, maxInFlightPerRequest, maxInFlight,
+                            priorityAging.toNanos()), singleFlightGroup, resultCache));
         }
     }
 
 
     private static class AsyncModelArgumentResolver implements HandlerMethodArgumentResolver {
         private final ExecutorService executorService;
+        private final FairShareScheduler scheduler;
+        private final SingleFlightGroup singleFlightGroup;
+        private final ResultCache resultCache;
 
-        private AsyncModelArgumentResolver(ExecutorService executorService) {
+        private AsyncModelArgumentResolver(ExecutorService executorService, FairShareScheduler scheduler,
+                                           SingleFlightGroup singleFlightGroup, ResultCache resultCache) {
             this.executorService = executorService;
+            this.scheduler = scheduler;
+            this.singleFlightGroup = singleFlightGroup;
+            this.resultCache = resultCache;
         }
 
         @Override
@@ -71,7 +93,8 @@ public class AsyncModelConfig {
             Object model = mavContainer.getModel();
             if (model == mavContainer.getDefaultModel()) { // Not redirect
                 Assert.isInstanceOf(Model.class, model);
-                model = new ExecutorAsyncModel((Model) model, executorService, webRequest);
+                model = new ExecutorAsyncModel((Model) model, executorService, scheduler, singleFlightGroup,
+                        resultCache, webRequest);
             }
             return model;
         }
@@ -113,16 +136,24 @@ public class AsyncModelConfig {
 
     private static class ExecutorAsyncModel extends WrappingModel implements AsyncModel {
         private final ExecutorService executorService;
-        private final CompletionService<Object> completionService;
+        private final FairShareScheduler.Session schedulerSession;
+        private final SingleFlightGroup singleFlightGroup;
+        private final ResultCache resultCache;
         private final BlockingQueue<Future<Object>> completionQueue;
         private final Map<String, Future<Object>> futureAttributes;
 
-        private ExecutorAsyncModel(Model model, ExecutorService executorService, RequestAttributes request) {
+        @SuppressWarnings("unchecked")
+        private ExecutorAsyncModel(Model model, ExecutorService executorService, FairShareScheduler scheduler,
+                                   SingleFlightGroup singleFlightGroup, ResultCache resultCache,
+                                   RequestAttributes request) {
             super(model);
             this.executorService = executorService;
+            this.singleFlightGroup = singleFlightGroup;
+            this.resultCache = resultCache;
             BlockingQueue<Future<Object>> completionQueue = new LinkedBlockingQueue<>();
             this.completionQueue = completionQueue;
-            this.completionService = new ExecutorCompletionService<>(executorService, completionQueue);
+            // Limits how much of the executor this request can use at once, queuing the rest of its tasks.
+            this.schedulerSession = scheduler.openSession(future -> completionQueue.add((Future<Object>) future));
             Map<String, Future<Object>> futureAttributes = new HashMap<>();
             this.futureAttributes = futureAttributes;
 
@@ -135,7 +166,32 @@ public class AsyncModelConfig {
         @Override
         public <T> Future<T> addAttribute(String attributeName, Callable<T> callable) {
             validateAttribute(attributeName, null);
-            Future<T> future = submit(attributeName, callable);
+            Future<T> future = submit(attributeName, callable, null);
+            super.addAttribute(attributeName, future);
+            return future;
+        }
+
+        @Override
+        public <T> Future<T> addAttribute(String attributeName, int priority, Callable<T> callable) {
+            validateAttribute(attributeName, null);
+            Future<T> future = submit(attributeName, callable, priority);
+            super.addAttribute(attributeName, future);
+            return future;
+        }
+
+        @Override
+        public <T> Future<T> addAttribute(String attributeName, String key, Callable<T> callable) {
+            validateAttribute(attributeName, null);
+            // A CompletableFuture, so it's tracked by the view (see TrackedModelFutures.addCompletableFutures).
+            Future<T> future = singleFlightGroup.submit(key, callable);
+            super.addAttribute(attributeName, future);
+            return future;
+        }
+
+        @Override
+        public <T> Future<T> addAttribute(String attributeName, String key, Duration ttl, Callable<T> callable) {
+            validateAttribute(attributeName, null);
+            Future<T> future = resultCache.get(key, ttl, callable);
             super.addAttribute(attributeName, future);
             return future;
         }
@@ -166,18 +222,20 @@ public class AsyncModelConfig {
         }
 
         @SuppressWarnings("unchecked")
-        private <T> Future<T> submit(String attributeName, Callable<T> callable) {
+        private <T> Future<T> submit(String attributeName, Callable<T> callable, @Nullable Integer priority) {
             Future<T> specificfuture;
             Future<Object> generalFuture;
             if (executorService instanceof LazyDirectExecutorService) {
-                // A CompletionService doesn't make sense for LazyDirectExecutorService
+                // Neither a CompletionService nor scheduling makes sense for LazyDirectExecutorService
                 // since either the work will be done on submit, or else
                 // later we would hang when trying to take from it.
                 specificfuture = executorService.submit(callable);
                 generalFuture = (Future<Object>) specificfuture;
                 completionQueue.add(generalFuture);
             } else {
-                generalFuture = completionService.submit((Callable<Object>) callable);
+                generalFuture = priority == null
+                        ? schedulerSession.submit((Callable<Object>) callable)
+                        : schedulerSession.submit((Callable<Object>) callable, priority);
                 specificfuture = (Future<T>) generalFuture;
             }
             futureAttributes.put(attributeName, generalFuture);
@@ -0,0 +1,59 @@
+package example.streaming.config;
+
+import java.time.Duration;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import example.streaming.RequestDeadline;
+import example.streaming.util.future.Deadline;
+
+// Gives each request a Deadline, from example.deadline.default or the handler's @RequestDeadline, which bounds
+// every wait on its model's futures (see DeferableObjectWrapper and TrackedModelFutures), so a page never holds
+// a thread for much longer than its budget, whatever its attributes do.
+@Configuration
+public class DeadlineConfig implements WebMvcConfigurer {
+
+    @Value("${example.deadline.default:0}")
+    Duration defaultDeadline;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new DeadlineInterceptor(defaultDeadline));
+    }
+
+
+    private static class DeadlineInterceptor implements HandlerInterceptor {
+        private final Duration defaultDeadline;
+
+        DeadlineInterceptor(Duration defaultDeadline) {
+            this.defaultDeadline = defaultDeadline;
+        }
+
+        @Override
+        public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+            if (request.getAttribute(Deadline.KEY) != null) {
+                return true; // e.g. a forward, which is still within the original request's budget
+            }
+            Duration budget = defaultDeadline;
+            RequestDeadline annotation = handler instanceof HandlerMethod
+                    ? ((HandlerMethod) handler).getMethodAnnotation(RequestDeadline.class) : null;
+            if (annotation != null) {
+                budget = DurationStyle.detectAndParse(annotation.value());
+            }
+            if (!budget.isZero() && !budget.isNegative()) {
+                request.setAttribute(Deadline.KEY, Deadline.after(budget));
+            }
+            return true;
+        }
+    }
+
+}
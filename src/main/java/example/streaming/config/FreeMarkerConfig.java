@@ -2,34 +2,78 @@ package example.streaming.config;
 
 import static java.util.Collections.*;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.logging.Log;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.freemarker.FreeMarkerProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Lazy;
+import org.springframework.core.Ordered;
+import org.springframework.core.env.Environment;
 import org.springframework.lang.Nullable;
+import org.springframework.web.servlet.support.RequestContextUtils;
 import org.springframework.web.servlet.view.AbstractUrlBasedView;
 import org.springframework.web.servlet.view.freemarker.FreeMarkerView;
 import org.springframework.web.servlet.view.freemarker.FreeMarkerViewResolver;
 
+import example.streaming.freemarker.custom.FlushPolicies;
+import example.streaming.freemarker.custom.FlushingWriter;
+import example.streaming.freemarker.custom.FragmentCache;
+import example.streaming.freemarker.custom.RenderMetrics;
+import example.streaming.freemarker.custom.ShellCache;
+import example.streaming.freemarker.custom.ShellWriter;
 import example.streaming.freemarker.custom.TrackedModelFutures;
+import example.streaming.freemarker.custom.Utf8ChunkWriter;
 import example.streaming.freemarker.custom.directive.AsyncDeferHtmlDirective;
 import example.streaming.freemarker.custom.directive.AsyncRenderDeferredHtmlDirective;
 import example.streaming.freemarker.custom.directive.DeferHtmlDirective;
 import example.streaming.freemarker.custom.directive.FlushBoundaryDirective;
+import example.streaming.freemarker.custom.directive.FragmentCacheDirective;
 import example.streaming.freemarker.custom.directive.RenderDeferredHtmlDirective;
 import example.streaming.freemarker.custom.directive.Streaming;
-import example.streaming.util.future.LazyDirectExecutorService;
+import example.streaming.freemarker.custom.directive.TemplateReferences;
+import example.streaming.util.future.BulkheadExecutor;
+import example.streaming.util.future.Deadline;
+import example.streaming.util.future.ExecutorMode;
+import example.streaming.util.future.FairShareScheduler;
+import example.streaming.util.future.HybridLazyExecutorService;
+import example.streaming.util.future.LazyTask;
+import example.streaming.util.future.LazyTaskPrefetcher;
+import freemarker.ext.servlet.FreemarkerServlet;
+import freemarker.template.SimpleHash;
+import freemarker.template.Template;
+import freemarker.template.TemplateHashModel;
 
 @Configuration
 public class FreeMarkerConfig {
@@ -38,37 +82,262 @@ public class FreeMarkerConfig {
 
     @Bean @Lazy(false)
     freemarker.template.Configuration freeMarkerTemplateConfiguration(
-            org.springframework.web.servlet.view.freemarker.FreeMarkerConfig configurer) {
+            org.springframework.web.servlet.view.freemarker.FreeMarkerConfig configurer,
+            FragmentCache fragmentCache,
+            @Value("${example.defer.shared-swap-runtime:false}") boolean sharedSwapRuntime,
+            @Value("${example.defer.parallel-render:false}") boolean parallelRender,
+            @Value("${example.defer.early-render:false}") boolean earlyRender,
+            @Qualifier("deferRenderExecutorService") ExecutorService deferRenderExecutorService) {
         freemarker.template.Configuration config = configurer.getConfiguration();
         config.setSharedVariable("atom", new FlushBoundaryDirective());
+        config.setSharedVariable("cache", new FragmentCacheDirective(fragmentCache));
         config.setSharedVariable("defer", new DeferHtmlDirective());
-        config.setSharedVariable("renderDeferred", new RenderDeferredHtmlDirective());
-        config.setSharedVariable("asyncDefer", new AsyncDeferHtmlDirective());
-        config.setSharedVariable("renderAsyncDeferred", new AsyncRenderDeferredHtmlDirective());
+        config.setSharedVariable("renderDeferred", new RenderDeferredHtmlDirective(sharedSwapRuntime));
+        AsyncRenderDeferredHtmlDirective renderAsyncDeferred = new AsyncRenderDeferredHtmlDirective(
+                sharedSwapRuntime, parallelRender ? deferRenderExecutorService : null);
+        config.setSharedVariable("asyncDefer", new AsyncDeferHtmlDirective(earlyRender ? renderAsyncDeferred : null));
+        config.setSharedVariable("renderAsyncDeferred", renderAsyncDeferred);
         config.setSharedVariable("disallowAutoStreaming", Streaming.disallowAutoStreamingDirective());
         config.setSharedVariable("isAutoStreamingAllowed", Streaming.checkAutoStreamingAllowedModel());
         return config;
     }
 
-    @Bean
-    ExecutorService mvcExecutorService() {
-        return new LazyDirectExecutorService();
+    @Bean // Used for AsyncModel attributes (see AsyncModelConfig).
+    ExecutorService mvcExecutorService(
+            @Value("${example.executor.model:lazy}") ExecutorMode mode,
+            @Value("${example.executor.hybrid-threads:20}") int hybridThreads) {
+        if (mode == ExecutorMode.HYBRID) {
+            return new HybridLazyExecutorService(hybridThreads, mode.threadFactory("hybrid-"));
+        }
+        return mode.create();
+    }
+
+    @Bean // Runs templates when rendering asynchronously (see AsyncRender).
+    ExecutorService renderExecutorService(@Value("${example.executor.render:cached}") ExecutorMode mode) {
+        if (mode.isLazy()) {
+            throw new IllegalArgumentException("Asynchronous rendering requires a concurrent executor");
+        }
+        return mode.create();
+    }
+
+    @Bean // Renders ready asyncDefer bodies in parallel, if enabled. Rendering is CPU bound, so a thread per core.
+    ExecutorService deferRenderExecutorService(@Value("${example.defer.parallel-render-threads:0}") int threads) {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        return Executors.newFixedThreadPool(threads, ExecutorMode.CACHED.threadFactory("defer-render-"));
     }
 
+    @Bean // Runs lazily executed model attributes before the template reads them, if enabled.
+    LazyTaskPrefetcher lazyTaskPrefetcher(
+            @Value("${example.prefetch.threads:20}") int threads,
+            @Value("${example.prefetch.queue-size:100}") int queueSize,
+            @Value("${example.prefetch.max-per-request:0}") int maxPerRequest) {
+        BulkheadExecutor executor = new BulkheadExecutor("prefetch", threads, queueSize,
+                BulkheadExecutor.SaturationPolicy.REJECT, ExecutorMode.CACHED.threadFactory("prefetch-"));
+        return new LazyTaskPrefetcher(executor, maxPerRequest);
+    }
+
+
+    @Bean // Flushing before potential blocks, tunable per view with example.flush.<viewName>.* properties.
+    FlushPolicies flushPolicies(Environment environment) {
+        return new FlushPolicies(key -> environment.getProperty("example.flush." + key));
+    }
+
+    @Bean // Rendered fragments for the cache directive, bounded by their total length in chars.
+    FragmentCache fragmentCache(@Value("${example.fragment-cache.max-size:10000000}") long maxSize) {
+        return new FragmentCache(maxSize);
+    }
+
+    @Bean // Static page shells sent before @CachedShell handlers run (see ShellCacheConfig).
+    ShellCache shellCache(@Value("${example.shell-cache.max-entries:1000}") int maxEntries) {
+        return new ShellCache(maxEntries);
+    }
+
+
+    @Bean // Rethrows a failed asynchronous render on the container thread, see AsyncRender.
+    FilterRegistrationBean<Filter> asyncRenderFailureFilter() {
+        Filter filter = (request, response, chain) -> {
+            Object failure = request.getAttribute(AsyncRender.FAILURE_ATTRIBUTE);
+            if (failure == null) {
+                chain.doFilter(request, response);
+                return;
+            }
+            request.removeAttribute(AsyncRender.FAILURE_ATTRIBUTE);
+            throw new ServletException("Failed rendering view asynchronously", (Exception) failure);
+        };
+        FilterRegistrationBean<Filter> registration = new FilterRegistrationBean<>(filter);
+        registration.setDispatcherTypes(DispatcherType.ASYNC);
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return registration;
+    }
 
     @Bean // Originally added so it can call Future.cancel
-    FreeMarkerViewResolver freeMarkerViewResolver(FreeMarkerProperties properties) {
+    FreeMarkerViewResolver freeMarkerViewResolver(
+            FreeMarkerProperties properties,
+            FlushPolicies flushPolicies,
+            ShellCache shellCache,
+            LazyTaskPrefetcher lazyTaskPrefetcher,
+            MetricsConfig.ViewMetrics viewMetrics,
+            @Value("${example.render.async:false}") boolean renderAsync,
+            @Value("${example.render.async-timeout:10m}") Duration renderAsyncTimeout,
+            @Value("${example.render.byte-output:true}") boolean byteOutput,
+            @Value("${example.defer.early-render:false}") boolean earlyRender,
+            @Value("${example.prefetch.enabled:false}") boolean prefetch,
+            @Value("${example.async-model.template-priorities:false}") boolean templatePriorities,
+            @Qualifier("renderExecutorService") ExecutorService renderExecutorService) {
         class CustomFreeMarkerView extends FreeMarkerView {
             @Override
             public void render(@Nullable Map<String,?> model, HttpServletRequest request,
                                HttpServletResponse response) throws Exception {
-                List<Future<?>> futures = CANCEL_UNCOMPLETED_FUTURES ? getFutures(model) : emptyList();
+                if ((prefetch || templatePriorities) && model != null) {
+                    List<String> readOrder = TemplateReferences.getReadOrder(
+                            getTemplate(RequestContextUtils.getLocale(request)));
+                    if (prefetch) {
+                        // Start the lazy attributes in the order the template reads them, rather than one at a time.
+                        lazyTaskPrefetcher.prefetch(readOrder, model);
+                    }
+                    if (templatePriorities) {
+                        prioritizeByReadOrder(readOrder, model);
+                    }
+                }
+                List<Future<?>> modelFutures = getFutures(model);
+                List<Future<?>> futures = CANCEL_UNCOMPLETED_FUTURES ? modelFutures : emptyList();
+                RenderMetrics metrics = viewMetrics.forView(getBeanName());
+                Runnable cancelFutures = () -> {
+                    metrics.recordCancelledFutures(cancel(futures));
+                    for (Future<?> future : modelFutures) {
+                        if (future instanceof LazyTask && ((LazyTask<?>) future).getRunNanos() >= 0) {
+                            metrics.recordLazyTaskRun(((LazyTask<?>) future).getRunNanos());
+                        }
+                    }
+                };
+                if (renderAsync && AsyncRender.isPossible(request)) {
+                    AsyncRender.start(request, response, renderAsyncTimeout, renderExecutorService, () -> {
+                        trackCompletableFutures(model, request);
+                        super.render(model, request, response);
+                    }, cancelFutures, logger);
+                    return;
+                }
                 try {
                     trackCompletableFutures(model, request);
                     super.render(model, request, response);
                 } finally {
-                    for (Future<?> future : futures) {
-                        future.cancel(true);
+                    cancelFutures.run();
+                }
+            }
+
+            @Override
+            protected void doRender(Map<String, Object> model, HttpServletRequest request,
+                                    HttpServletResponse response) throws Exception {
+                // As FreeMarkerView, but rendering to a FlushingWriter that knows about the model's futures.
+                long startNanos = System.nanoTime();
+                RenderMetrics metrics = viewMetrics.forView(getBeanName());
+                exposeModelAsRequestAttributes(model, request);
+                SimpleHash fmModel = buildTemplateModel(model, request, response);
+                Locale locale = RequestContextUtils.getLocale(request);
+                Template template = getTemplate(locale);
+
+                // A cached shell has already been sent through the OutputStream (see ShellCacheConfig).
+                ShellCache.Shell sentShell = (ShellCache.Shell) request.getAttribute(ShellCache.SERVED_ATTRIBUTE);
+                ShellCache.Key shellKey = (ShellCache.Key) request.getAttribute(ShellCache.KEY_ATTRIBUTE);
+                if (shellKey != null && !shellKey.getViewName().equals(getBeanName())) {
+                    if (sentShell != null) {
+                        shellCache.mismatched(shellKey);
+                        throw new IllegalStateException("View " + getBeanName()
+                                + " rendered after the cached shell of " + shellKey.getViewName() + " was sent");
+                    }
+                    shellKey = null;
+                }
+
+                // Encoding into our own buffer avoids re-encoding the template's static text on every request.
+                boolean utf8 = Utf8ChunkWriter.isSupported(response.getCharacterEncoding());
+                Utf8ChunkWriter chunkWriter = sentShell != null || (byteOutput && utf8)
+                        ? new Utf8ChunkWriter(response.getOutputStream()) : null;
+                Writer responseWriter = chunkWriter != null ? chunkWriter : response.getWriter();
+                ShellWriter shellWriter = null;
+                if (shellKey != null && utf8) {
+                    shellWriter = sentShell != null
+                            ? ShellWriter.skipping(responseWriter, shellCache, shellKey, sentShell)
+                            : ShellWriter.recording(responseWriter, shellCache, shellKey, template, response.getContentType());
+                    responseWriter = shellWriter;
+                }
+
+                TemplateHashModel dataModel = fmModel;
+                if (shellWriter != null) {
+                    // The Request is looked up by directives too, and its attributes are covered by the shell's key
+                    // (see CachedShell.keyAttributes).
+                    dataModel = shellWriter.watch(fmModel, name -> FreemarkerServlet.KEY_REQUEST.equals(name)
+                            || FreemarkerServlet.KEY_JSP_TAGLIBS.equals(name) || model.get(name) instanceof Future);
+                }
+
+                List<Future<?>> futures = getFutures(model);
+                FlushingWriter out = new FlushingWriter(responseWriter,
+                        flushPolicies.getPolicy(getBeanName()), flushPolicies.getStatistics(getBeanName()),
+                        () -> futures.stream().anyMatch(future -> !future.isDone()));
+                out.setShell(shellWriter);
+                if (!utf8) {
+                    out.setCharset(Charset.forName(response.getCharacterEncoding()));
+                }
+                out.setMetrics(metrics);
+                if (earlyRender) {
+                    out.trackHtmlContext(); // To find where ready asyncDefer content can be written early
+                }
+                if (chunkWriter == null) {
+                    out.checkErrorsOf(response.getWriter());
+                }
+                // Stop the work for a page no-one is waiting for, rather than once the template has finished.
+                TrackedModelFutures tracking = (TrackedModelFutures) request.getAttribute(TrackedModelFutures.KEY);
+                out.onClientAbort(() -> {
+                    metrics.recordCancelledFutures(cancel(futures));
+                    if (tracking != null) {
+                        tracking.cancelAll();
+                    }
+                });
+                try {
+                    freemarker.core.Environment env = template.createProcessingEnvironment(dataModel, out);
+                    out.install(env);
+                    env.process();
+                    out.finish();
+                    if (shellWriter != null) {
+                        shellWriter.finish();
+                    }
+                    metrics.recordRender(System.nanoTime() - startNanos);
+                } catch (Exception e) {
+                    if (!out.isClientAborted()) {
+                        throw e;
+                    }
+                    logger.debug("Client disconnected whilst rendering view " + getBeanName(), e);
+                } finally {
+                    if (chunkWriter != null) {
+                        chunkWriter.release();
+                    }
+                }
+            }
+
+            // Returns how many were still running (or yet to run), rather than done already.
+            private int cancel(List<Future<?>> futures) {
+                int cancelled = 0;
+                for (Future<?> future : futures) {
+                    if (!future.isDone() && future.cancel(true)) {
+                        cancelled++;
+                    }
+                }
+                return cancelled;
+            }
+
+            // Attributes still queued are run in the order the template needs them, with those it doesn't use last.
+            private void prioritizeByReadOrder(List<String> readOrder, Map<String, ?> model) {
+                Map<String, Integer> positions = new HashMap<>();
+                for (String name : readOrder) {
+                    if (model.get(name) instanceof Future) {
+                        positions.putIfAbsent(name, positions.size());
+                    }
+                }
+                for (Map.Entry<String, ?> entry : model.entrySet()) {
+                    if (entry.getValue() instanceof Future) {
+                        FairShareScheduler.prioritize((Future<?>) entry.getValue(),
+                                positions.getOrDefault(entry.getKey(), positions.size()));
                     }
                 }
             }
@@ -88,6 +357,8 @@ public class FreeMarkerConfig {
                     tracking = new TrackedModelFutures();
                     request.setAttribute(TrackedModelFutures.KEY, tracking);
                 }
+                tracking.setDeadline((Deadline) request.getAttribute(Deadline.KEY));
+                tracking.setMetrics(viewMetrics.forView(getBeanName()));
 
                 if (model == null || model.isEmpty()) {
                     return;
@@ -117,4 +388,167 @@ public class FreeMarkerConfig {
         return resolver;
     }
 
+
+    // Renders a view on another thread using Servlet async processing, so that the container's thread
+    // goes back to its pool rather than being blocked whilst the template waits on futures.
+    // Note that interceptors' afterCompletion callbacks run when the container thread returns, before rendering finishes.
+    // A render that fails after the response has been committed is rethrown on a container thread (see
+    // asyncRenderFailureFilter), so that the connection is aborted, as when rendering synchronously, rather than the
+    // truncated page being ended like a complete one.
+    private static class AsyncRender implements Runnable, AsyncListener {
+        // How long a timed out or failed request waits for its template to stop, after cancelling its futures.
+        private static final long ABORT_GRACE_MILLIS = 5_000;
+        static final String FAILURE_ATTRIBUTE = AsyncRender.class.getName() + ".failure";
+
+        interface Renderer {
+            void render() throws Exception;
+        }
+
+        private final AsyncContext asyncContext;
+        private final Renderer renderer;
+        private final Runnable cleanUp;
+        private final Log logger;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private final AtomicBoolean cleanedUp = new AtomicBoolean();
+        private Thread renderThread; // Guarded by this
+        private boolean aborted; // Guarded by this
+
+        private AsyncRender(AsyncContext asyncContext, Renderer renderer, Runnable cleanUp, Log logger) {
+            this.asyncContext = asyncContext;
+            this.renderer = renderer;
+            this.cleanUp = cleanUp;
+            this.logger = logger;
+        }
+
+        static boolean isPossible(HttpServletRequest request) {
+            return request.isAsyncSupported() && !request.isAsyncStarted()
+                    && request.getDispatcherType() == DispatcherType.REQUEST;
+        }
+
+        // cleanUp is run once rendering has finished or been aborted.
+        static void start(HttpServletRequest request, HttpServletResponse response, Duration timeout,
+                          Executor executor, Renderer renderer, Runnable cleanUp, Log logger) {
+            AsyncContext asyncContext = request.startAsync(request, response);
+            asyncContext.setTimeout(timeout.toMillis());
+            AsyncRender asyncRender = new AsyncRender(asyncContext, renderer, cleanUp, logger);
+            asyncContext.addListener(asyncRender);
+            try {
+                executor.execute(asyncRender);
+            } catch (RejectedExecutionException e) {
+                asyncRender.run(); // Fall back to blocking the container thread
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (aborted) {
+                    return;
+                }
+                renderThread = Thread.currentThread();
+            }
+            Exception rethrow = null;
+            try {
+                renderer.render();
+            } catch (Exception e) {
+                rethrow = handleFailure(e);
+            } finally {
+                synchronized (this) {
+                    renderThread = null;
+                    Thread.interrupted(); // Don't leave an abort's interrupt for the thread's next task
+                }
+                finished.countDown();
+                if (rethrow != null) {
+                    completeExceptionally(rethrow);
+                } else {
+                    complete();
+                }
+            }
+        }
+
+        // Returns the failure if it has to be rethrown by the container, as the response has already been committed.
+        private Exception handleFailure(Exception e) {
+            synchronized (this) {
+                if (aborted) {
+                    logger.debug("Aborted rendering view", e);
+                    return null;
+                }
+            }
+            HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+            if (response.isCommitted()) {
+                return e;
+            }
+            try {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } catch (IOException | IllegalStateException sendErrorException) {
+                e.addSuppressed(sendErrorException);
+            }
+            logger.error("Failed rendering view asynchronously", e);
+            return null;
+        }
+
+        private void abort() {
+            boolean rendering;
+            synchronized (this) {
+                aborted = true;
+                rendering = renderThread != null;
+                if (rendering) {
+                    renderThread.interrupt();
+                }
+            }
+            cleanUp(); // Cancelled futures no longer hold up the template
+            if (rendering) {
+                try {
+                    // Completing whilst the template is still writing could affect the response's next use.
+                    finished.await(ABORT_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            complete();
+        }
+
+        private void complete() {
+            if (completed.compareAndSet(false, true)) {
+                cleanUp();
+                asyncContext.complete();
+            }
+        }
+
+        // Ends the response by rethrowing the failure on a container thread (see asyncRenderFailureFilter).
+        private void completeExceptionally(Exception e) {
+            if (completed.compareAndSet(false, true)) {
+                cleanUp();
+                asyncContext.getRequest().setAttribute(FAILURE_ATTRIBUTE, e);
+                asyncContext.dispatch();
+            }
+        }
+
+        private void cleanUp() {
+            if (cleanedUp.compareAndSet(false, true)) {
+                cleanUp.run();
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            logger.warn("Timed out rendering view asynchronously");
+            abort();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) { // e.g. client disconnected
+            abort();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
 }
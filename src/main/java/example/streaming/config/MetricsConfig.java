@@ -0,0 +1,150 @@
+package example.streaming.config;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import example.streaming.freemarker.custom.FlushPolicies;
+import example.streaming.freemarker.custom.FlushStatistics;
+import example.streaming.freemarker.custom.RenderMetrics;
+import example.streaming.util.future.BulkheadExecutor;
+import example.streaming.util.future.BulkheadRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+
+// Publishes the streaming renders' RenderMetrics through Micrometer (see /actuator/metrics), tagged by view name,
+// e.g. /actuator/metrics/streaming.attribute.wait?tag=view:futures
+// Also the bulkheads' pools (as executor.* tagged with name:bulkhead-<name>) and saturation counts.
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    ViewMetrics viewMetrics(MeterRegistry registry, FlushPolicies flushPolicies) {
+        return new ViewMetrics(registry, flushPolicies);
+    }
+
+    @Bean // Each bulkhead is bound once it's created, as they're created when first used.
+    MeterBinder bulkheadMetrics(BulkheadRegistry bulkheads) {
+        return registry -> bulkheads.forEachBulkhead(bulkhead -> bindBulkhead(bulkhead, registry));
+    }
+
+    private static void bindBulkhead(BulkheadExecutor bulkhead, MeterRegistry registry) {
+        new ExecutorServiceMetrics(bulkhead, "bulkhead-" + bulkhead.getName(), Tags.empty()).bindTo(registry);
+        FunctionCounter.builder("streaming.bulkhead.rejected", bulkhead, BulkheadExecutor::getRejectedCount)
+                .description("Tasks rejected by the bulkhead when saturated")
+                .tag("bulkhead", bulkhead.getName()).register(registry);
+        FunctionCounter.builder("streaming.bulkhead.caller.runs", bulkhead, BulkheadExecutor::getCallerRunsCount)
+                .description("Tasks run on the calling thread as the bulkhead was saturated")
+                .tag("bulkhead", bulkhead.getName()).register(registry);
+    }
+
+
+    public static class ViewMetrics {
+        private final MeterRegistry registry;
+        private final FlushPolicies flushPolicies;
+        private final Map<String, RenderMetrics> views = new ConcurrentHashMap<>();
+
+        ViewMetrics(MeterRegistry registry, FlushPolicies flushPolicies) {
+            this.registry = registry;
+            this.flushPolicies = flushPolicies;
+        }
+
+        public RenderMetrics forView(String viewName) {
+            return views.computeIfAbsent(viewName,
+                    name -> new MicrometerRenderMetrics(registry, name, flushPolicies.getStatistics(name)));
+        }
+    }
+
+    private static class MicrometerRenderMetrics implements RenderMetrics {
+        private final Timer attributeWait;
+        private final Timer lazyTaskRun;
+        private final Timer completionWait;
+        private final DistributionSummary chunks;
+        private final Timer firstFlush;
+        private final Timer render;
+        private final Timer deferredRender;
+        private final Counter cancelledFutures;
+
+        MicrometerRenderMetrics(MeterRegistry registry, String viewName, FlushStatistics flushStatistics) {
+            attributeWait = Timer.builder("streaming.attribute.wait")
+                    .description("Time the template waited for a model attribute")
+                    .tag("view", viewName).register(registry);
+            lazyTaskRun = Timer.builder("streaming.lazy.task.run")
+                    .description("Run time of lazily executed model attributes")
+                    .tag("view", viewName).register(registry);
+            completionWait = Timer.builder("streaming.completion.wait")
+                    .description("Time waiting for the next model attribute to complete")
+                    .tag("view", viewName).register(registry);
+            chunks = DistributionSummary.builder("streaming.flush.chunk")
+                    .description("Size of each chunk of the response sent").baseUnit("bytes")
+                    .tag("view", viewName).register(registry);
+            firstFlush = Timer.builder("streaming.render.first.flush")
+                    .description("Time from the start of rendering until the first chunk was sent")
+                    .tag("view", viewName).register(registry);
+            render = Timer.builder("streaming.render")
+                    .description("Time rendering the view")
+                    .tag("view", viewName).register(registry);
+            deferredRender = Timer.builder("streaming.deferred.render")
+                    .description("Time rendering deferred items' bodies")
+                    .tag("view", viewName).register(registry);
+            cancelledFutures = Counter.builder("streaming.futures.cancelled")
+                    .description("Model futures cancelled by the view")
+                    .tag("view", viewName).register(registry);
+            FunctionCounter.builder("streaming.client.aborts", flushStatistics, FlushStatistics::getClientAbortCount)
+                    .description("Renders stopped as the client had disconnected")
+                    .tag("view", viewName).register(registry);
+        }
+
+        @Override
+        public void recordAttributeWait(long nanos) {
+            attributeWait.record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void recordLazyTaskRun(long nanos) {
+            lazyTaskRun.record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void recordCompletionWait(long nanos) {
+            completionWait.record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void recordChunk(int bytes) {
+            chunks.record(bytes);
+        }
+
+        @Override
+        public void recordFirstFlush(long nanos) {
+            firstFlush.record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void recordRender(long nanos) {
+            render.record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void recordDeferredRender(long nanos) {
+            deferredRender.record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void recordCancelledFutures(int count) {
+            if (count > 0) {
+                cancelledFutures.increment(count);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+package example.streaming.config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.lang.Nullable;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.springframework.web.servlet.support.RequestContextUtils;
+
+import example.streaming.CachedShell;
+import example.streaming.freemarker.custom.ShellCache;
+
+// Sends the cached static shell of @CachedShell handlers' pages before the handler runs,
+// so that the browser gets the page's head (and can start loading its assets) straight away.
+// That commits the response as a 200, so a handler that then throws or doesn't render its view has the connection
+// aborted rather than an error page (or redirect) appended to the shell.
+@Configuration
+public class ShellCacheConfig implements WebMvcConfigurer {
+
+    @Autowired
+    ShellCache shellCache;
+    @Autowired
+    freemarker.template.Configuration freeMarkerConfiguration;
+    @Value("${example.shell-cache.enabled:false}")
+    boolean enabled;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        if (enabled) {
+            registry.addInterceptor(new ShellCacheInterceptor(shellCache, freeMarkerConfiguration));
+        }
+    }
+
+
+    private static class ShellCacheInterceptor implements HandlerInterceptor {
+        private static final Log logger = LogFactory.getLog(ShellCacheInterceptor.class);
+
+        private final ShellCache shellCache;
+        private final freemarker.template.Configuration configuration;
+        // Learnt from each handler's first response, since its view isn't known until it has run.
+        private final Map<Method, String> handlerViewNames = new ConcurrentHashMap<>();
+
+        ShellCacheInterceptor(ShellCache shellCache, freemarker.template.Configuration configuration) {
+            this.shellCache = shellCache;
+            this.configuration = configuration;
+        }
+
+        @Override
+        public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+                throws IOException {
+            CachedShell annotation = findAnnotation(request, handler);
+            String viewName = annotation == null ? null : handlerViewNames.get(((HandlerMethod) handler).getMethod());
+            if (viewName == null) {
+                return true;
+            }
+
+            Locale locale = RequestContextUtils.getLocale(request);
+            ShellCache.Key key = new ShellCache.Key(viewName, locale, keyAttributes(annotation, request));
+            request.setAttribute(ShellCache.KEY_ATTRIBUTE, key);
+            // Getting the template also picks up a reloaded one, which invalidates the shell.
+            ShellCache.Shell shell = shellCache.get(key, name -> configuration.getTemplate(name, locale));
+            if (shell == null) {
+                return true;
+            }
+
+            response.setContentType(shell.getContentType());
+            response.setLocale(locale);
+            OutputStream out = response.getOutputStream();
+            out.write(shell.getBytes());
+            out.flush();
+            request.setAttribute(ShellCache.SERVED_ATTRIBUTE, shell);
+            return true;
+        }
+
+        @Override
+        public void postHandle(HttpServletRequest request, HttpServletResponse response, Object handler,
+                               @Nullable ModelAndView modelAndView) {
+            CachedShell annotation = findAnnotation(request, handler);
+            if (annotation == null) {
+                return;
+            }
+            String viewName = modelAndView == null ? null : modelAndView.getViewName();
+            Method method = ((HandlerMethod) handler).getMethod();
+            if (viewName == null || viewName.contains(":")) { // e.g. a redirect
+                handlerViewNames.remove(method);
+                ShellCache.Key key = (ShellCache.Key) request.getAttribute(ShellCache.KEY_ATTRIBUTE);
+                request.removeAttribute(ShellCache.KEY_ATTRIBUTE);
+                if (request.getAttribute(ShellCache.SERVED_ATTRIBUTE) != null) {
+                    shellCache.mismatched(key);
+                    throw new IllegalStateException(
+                            "Handler annotated with @CachedShell didn't render a template after its shell was sent: "
+                                    + method);
+                }
+                return;
+            }
+
+            String previous = handlerViewNames.put(method, viewName);
+            if (request.getAttribute(ShellCache.KEY_ATTRIBUTE) == null) {
+                Locale locale = RequestContextUtils.getLocale(request);
+                request.setAttribute(ShellCache.KEY_ATTRIBUTE,
+                        new ShellCache.Key(viewName, locale, keyAttributes(annotation, request)));
+            } else if (previous != null && !previous.equals(viewName)) {
+                logger.warn("Handler annotated with @CachedShell changed its view from " + previous + " to "
+                        + viewName + ": " + method);
+            }
+        }
+
+        @Nullable
+        private static CachedShell findAnnotation(HttpServletRequest request, Object handler) {
+            if (!(handler instanceof HandlerMethod)
+                    || request.getDispatcherType() != DispatcherType.REQUEST
+                    || !"GET".equals(request.getMethod())) {
+                return null;
+            }
+            return ((HandlerMethod) handler).getMethodAnnotation(CachedShell.class);
+        }
+
+        private static List<Object> keyAttributes(CachedShell annotation, HttpServletRequest request) {
+            List<Object> values = new ArrayList<>(annotation.keyAttributes().length);
+            for (String name : annotation.keyAttributes()) {
+                Object value = request.getAttribute(name);
+                values.add(value == null ? null : value.toString());
+            }
+            return values;
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package example.streaming.config;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.autoproxy.AbstractBeanFactoryAwareAdvisingPostProcessor;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Role;
+import org.springframework.core.Ordered;
+
+import example.streaming.SingleFlight;
+import example.streaming.util.future.BulkheadRegistry;
+import example.streaming.util.future.CancellableFuture;
+import example.streaming.util.future.ResultCache;
+import example.streaming.util.future.SingleFlightGroup;
+
+// Coalesces concurrent calls of @SingleFlight methods with equal arguments, across requests, and backs the keyed
+// AsyncModel.addAttribute methods (see AsyncModelConfig), including those whose results are cached.
+@Configuration
+public class SingleFlightConfig {
+
+    @Bean // Runs the shared executions of calls that don't return a Future themselves, on their own bulkhead.
+    SingleFlightGroup singleFlightGroup(BulkheadRegistry bulkheads) {
+        return new SingleFlightGroup(bulkheads.get("singleFlight"));
+    }
+
+    @Bean
+    ResultCache resultCache(SingleFlightGroup singleFlightGroup,
+                            @Value("${example.result-cache.max-entries:10000}") int maxEntries,
+                            @Value("${example.result-cache.stale:1m}") Duration stale,
+                            @Value("${example.result-cache.refresh-ahead:0.8}") double refreshAhead) {
+        return new ResultCache(singleFlightGroup, maxEntries, stale, refreshAhead);
+    }
+
+    @Bean
+    @Role(BeanDefinition.ROLE_INFRASTRUCTURE)
+    static SingleFlightPostProcessor singleFlightPostProcessor(
+            ObjectProvider<SingleFlightGroup> group,
+            @Value("${example.single-flight.enabled:false}") boolean enabled) {
+        return new SingleFlightPostProcessor(enabled ? new SingleFlightInterceptor(group) : null);
+    }
+
+
+    // Ordered after the @Async post processor (see SpringAsyncConfig), and adds its advisor before that one,
+    // so that concurrent calls are coalesced before they're submitted, rather than each taking a thread to wait.
+    static class SingleFlightPostProcessor extends AbstractBeanFactoryAwareAdvisingPostProcessor {
+        private static final long serialVersionUID = 1L;
+
+        SingleFlightPostProcessor(SingleFlightInterceptor interceptor) {
+            if (interceptor != null) {
+                advisor = new DefaultPointcutAdvisor(
+                        AnnotationMatchingPointcut.forMethodAnnotation(SingleFlight.class), interceptor);
+            }
+            setBeforeExistingAdvisors(true);
+            setOrder(Ordered.LOWEST_PRECEDENCE);
+        }
+    }
+
+    // Keyed by the method and its arguments.
+    private static class SingleFlightInterceptor implements MethodInterceptor {
+        private final ObjectProvider<SingleFlightGroup> group;
+
+        SingleFlightInterceptor(ObjectProvider<SingleFlightGroup> group) {
+            this.group = group; // Looked up when first used, since post processors are created early
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            Method method = invocation.getMethod();
+            List<Object> key = Arrays.asList(method, Arrays.asList(invocation.getArguments()));
+            Class<?> returnType = method.getReturnType();
+            if (!Future.class.isAssignableFrom(returnType)) {
+                return group.getObject().call(key, () -> proceed(invocation));
+            }
+            if (!returnType.isAssignableFrom(CancellableFuture.class)) {
+                throw new IllegalStateException(
+                        "@SingleFlight methods returning a Future must return a CompletableFuture: " + method);
+            }
+            return group.getObject().submitAsync(key, () -> {
+                try {
+                    return (CompletableFuture<Object>) proceed(invocation);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    return CancellableFuture.failed(e);
+                }
+            });
+        }
+
+        private static Object proceed(MethodInvocation invocation) throws Exception {
+            try {
+                return invocation.proceed();
+            } catch (Exception | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new UndeclaredThrowableException(t);
+            }
+        }
+    }
+
+}
@@ -1,34 +1,134 @@
 package example.streaming.config;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.aopalliance.aop.Advice;
+import org.springframework.aop.interceptor.AsyncUncaughtExceptionHandler;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Role;
+import org.springframework.core.Ordered;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.core.task.support.TaskExecutorAdapter;
-import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.annotation.AnnotationAsyncExecutionInterceptor;
+import org.springframework.scheduling.annotation.AsyncAnnotationAdvisor;
+import org.springframework.scheduling.annotation.AsyncAnnotationBeanPostProcessor;
+import org.springframework.scheduling.config.TaskManagementConfigUtils;
 
-import java.util.concurrent.*;
+import example.streaming.util.future.BulkheadRegistry;
+import example.streaming.util.future.CancellableFuture;
+import example.streaming.util.future.ExecutorMode;
 
+// Equivalent to @EnableAsync, except that @Async methods returning a Future
+// return a failed Future rather than throwing when their executor is saturated,
+// and those returning a CancellableFuture can be interrupted by cancelling it.
+// Since models can contain failed Futures, this allows just that part of the page to show a fallback.
 @Configuration
-@EnableAsync
 public class SpringAsyncConfig {
 
-    // For @Async methods. Replaces default SimpleAsyncTaskExecutor.
+    // Use with @Async(...) so that each downstream service has its own bulkhead.
+    public static final String ASYNC_SLOW_SERVICE_EXECUTOR = "asyncSlowServiceExecutor";
+
+    private static final String BULKHEAD_PROPERTY_PREFIX = "example.bulkhead.";
+
+
+    // Bounded pools, one per downstream dependency, configured by example.bulkhead.<name>.* properties.
     @Bean
-    public TaskExecutor springAsyncTaskExecutor() {
-        return new TaskExecutorAdapter(concurrentExecutorService());
+    public BulkheadRegistry bulkheadRegistry(
+            Environment environment, @Value("${example.executor.async:cached}") ExecutorMode mode) {
+        if (mode.isLazy()) {
+            // @Async submits using execute(), which LazyDirectExecutorService would run on the calling thread.
+            throw new IllegalArgumentException("@Async requires a concurrent executor");
+        }
+        return new BulkheadRegistry(key -> environment.getProperty(BULKHEAD_PROPERTY_PREFIX + key), mode);
+    }
+
+    // For @Async methods without a qualifier. Replaces default SimpleAsyncTaskExecutor.
+    // Also named taskExecutor, since @Async falls back to looking that up when there are multiple TaskExecutors.
+    @Bean({"springAsyncTaskExecutor", "taskExecutor"})
+    public TaskExecutor springAsyncTaskExecutor(BulkheadRegistry bulkheads) {
+        return new TaskExecutorAdapter(bulkheads.get("default"));
     }
 
+    @Bean(ASYNC_SLOW_SERVICE_EXECUTOR)
+    public TaskExecutor asyncSlowServiceExecutor(BulkheadRegistry bulkheads) {
+        return new TaskExecutorAdapter(bulkheads.get("asyncSlowService"));
+    }
+
+
+    // Takes the place of the post processor registered by @EnableAsync.
+    @Bean(name = TaskManagementConfigUtils.ASYNC_ANNOTATION_PROCESSOR_BEAN_NAME)
+    @Role(BeanDefinition.ROLE_INFRASTRUCTURE)
+    static AsyncAnnotationBeanPostProcessor asyncAnnotationProcessor() {
+        AsyncAnnotationBeanPostProcessor processor = new AsyncAnnotationBeanPostProcessor() {
+            private Supplier<Executor> executor;
+            private Supplier<AsyncUncaughtExceptionHandler> exceptionHandler;
+
+            @Override
+            public void configure(@Nullable Supplier<Executor> executor,
+                                  @Nullable Supplier<AsyncUncaughtExceptionHandler> exceptionHandler) {
+                super.configure(executor, exceptionHandler);
+                this.executor = executor;
+                this.exceptionHandler = exceptionHandler;
+            }
+
+            @Override
+            public void setBeanFactory(BeanFactory beanFactory) {
+                super.setBeanFactory(beanFactory);
+                AsyncAnnotationAdvisor advisor = new AsyncAnnotationAdvisor(executor, exceptionHandler) {
+                    @Override
+                    protected Advice buildAdvice(@Nullable Supplier<Executor> executor,
+                                                 @Nullable Supplier<AsyncUncaughtExceptionHandler> exceptionHandler) {
+                        AsyncExecutionInterceptor interceptor = new AsyncExecutionInterceptor();
+                        interceptor.configure(executor, exceptionHandler);
+                        return interceptor;
+                    }
+                };
+                advisor.setBeanFactory(beanFactory);
+                this.advisor = advisor;
+            }
+        };
+        // Before SingleFlightConfig's, which wraps the @Async advice rather than being wrapped by it.
+        processor.setOrder(Ordered.LOWEST_PRECEDENCE - 1);
+        return processor;
+    }
 
-    private ExecutorService concurrentExecutorService() {
-        // Please don't use this in production since the thread pool size in unbounded.
-        return Executors.newCachedThreadPool();
+    private static class AsyncExecutionInterceptor extends AnnotationAsyncExecutionInterceptor {
+        AsyncExecutionInterceptor() {
+            super(null);
+        }
 
-        // Perhaps consider adding a maximum thread pool size
-        // and fallback to using running synchronously when
-        // the maximum number of active threads is reached:
-        // return new ThreadPoolExecutor(0, maxThreads,
-        //         60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
-        //         new ThreadPoolExecutor.CallerRunsPolicy());
+        @Override
+        @Nullable
+        protected Object doSubmit(Callable<Object> task, AsyncTaskExecutor executor, Class<?> returnType) {
+            try {
+                if (CancellableFuture.class.isAssignableFrom(returnType)) {
+                    // Linked to the task running the method, so that cancelling it interrupts the method.
+                    return CancellableFuture.supply(task::call, executor);
+                }
+                return super.doSubmit(task, executor, returnType);
+            } catch (TaskRejectedException e) {
+                if (CancellableFuture.class.isAssignableFrom(returnType)) {
+                    return CancellableFuture.failed(e);
+                }
+                if (Future.class.isAssignableFrom(returnType)
+                        && returnType.isAssignableFrom(CompletableFuture.class)) {
+                    return CompletableFuture.failedFuture(e);
+                }
+                throw e;
+            }
+        }
     }
 
 }
@@ -5,6 +5,8 @@ import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.GetMapping;
 
 import example.streaming.AsyncModel;
+import example.streaming.CachedShell;
+import example.streaming.RequestDeadline;
 import example.streaming.service.BlockingSlowService;
 
 @Controller
@@ -14,6 +16,7 @@ public class ExtrasController {
     private BlockingSlowService service;
 
     @GetMapping("/atoms")
+    @CachedShell
     public String atoms(AsyncModel model) {
         model.addAttribute("myData", service::getData1);
 
@@ -26,6 +29,7 @@ public class ExtrasController {
     }
 
     @GetMapping("/error-boundaries")
+    @CachedShell
     public String errorBoundaries(AsyncModel model) {
         model.addAttribute("throwsException", () -> {
             Thread.sleep(500);
@@ -35,6 +39,7 @@ public class ExtrasController {
     }
 
     @GetMapping("/suspend")
+    @CachedShell
     public String suspend(AsyncModel model) {
         for (int i = 1; i <= 3; i++) {
             model.addAttribute("myData" + i, () -> {
@@ -45,18 +50,74 @@ public class ExtrasController {
         return "extras/suspend";
     }
 
+    @GetMapping("/fragment-cache")
+    @CachedShell
+    public String fragmentCache(AsyncModel model) {
+        model.addAttribute("myData", service::getData1);
+        model.addAttribute("myData2", () -> {
+            Thread.sleep(500);
+            return "Work done";
+        });
+        return "extras/fragment_cache";
+    }
+
     @GetMapping("/defer")
+    @CachedShell
     public String defer(AsyncModel model) {
         addDeferAttributes(model, 5);
         return "extras/defer";
     }
 
     @GetMapping("/async-defer")
+    @CachedShell
     public String asyncDefer(AsyncModel model) {
         addDeferAttributes(model, 6);
         return "extras/async_defer";
     }
 
+    // Shows example.defer.early-render: the quick asyncDefer items can be written whilst the page waits on slowData.
+    @GetMapping("/async-defer-early")
+    @CachedShell
+    public String asyncDeferEarly(AsyncModel model) {
+        for (int i = 1; i <= 3; i++) {
+            final int sleep = 500 * i;
+            model.addAttribute("myData" + i, () -> {
+                Thread.sleep(sleep);
+                return "Work done";
+            });
+        }
+        model.addAttribute("slowData", () -> {
+            Thread.sleep(2000);
+            return "Slow work done";
+        });
+        model.addAttribute("slowerData", () -> {
+            Thread.sleep(3500);
+            return "Slower work done";
+        });
+        return "extras/async_defer_early";
+    }
+
+    // Shows @RequestDeadline: the page finishes after about 2s, with defaults for whatever wasn't ready by then,
+    // rather than waiting on (and holding a thread for) the slow attributes.
+    @GetMapping("/deadline")
+    @CachedShell
+    @RequestDeadline("2s")
+    public String deadline(AsyncModel model) {
+        model.addAttribute("myData", () -> {
+            Thread.sleep(500);
+            return "Work done";
+        });
+        model.addAttribute("slowData", () -> {
+            Thread.sleep(5000);
+            return "Slow work done";
+        });
+        model.addAttribute("slowerData", () -> {
+            Thread.sleep(8000);
+            return "Slower work done";
+        });
+        return "extras/deadline";
+    }
+
     private static void addDeferAttributes(AsyncModel model, int count) {
         for (int i = 1; i <= count; i++) {
             final int sleep = Math.max(4000 - (500 * i), 2500);
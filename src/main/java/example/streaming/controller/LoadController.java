@@ -1,11 +1,14 @@
 package example.streaming.controller;
 
+import java.time.Duration;
+
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 
 import example.streaming.AsyncModel;
+import example.streaming.CachedShell;
 
 @Controller
 @RequestMapping("/load")
@@ -19,6 +22,7 @@ public class LoadController {
     }
 
     @GetMapping("/streaming")
+    @CachedShell
     public String streamingPageLoad(AsyncModel model) {
         model.addAttribute("myData", () -> {
             Thread.sleep(3_500); // Fetching data over network
@@ -27,7 +31,20 @@ public class LoadController {
         return "load/loading";
     }
 
+    // Only the first request (and one every 30s or so, in the background) waits for the data: the others get the
+    // cached result straight away, so the page renders as quickly as a static one.
+    @GetMapping("/cached")
+    @CachedShell
+    public String cachedPageLoad(AsyncModel model) {
+        model.addAttribute("myData", "load.myData", Duration.ofSeconds(30), () -> {
+            Thread.sleep(3_500); // Fetching data over network
+            return "My data";
+        });
+        return "load/loading";
+    }
+
     @GetMapping("/head-first")
+    @CachedShell
     public String headBeforeRestOfPage(AsyncModel model) {
         streamingPageLoad(model);
         return "load/head_first";
@@ -0,0 +1,66 @@
+package example.streaming.freemarker.custom;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import example.streaming.util.future.LazyTask;
+
+// Only flushes when it's likely to get content to the browser sooner:
+// not when nothing is buffered and not when the value is already available (or no model future is still running).
+// Below minChunkSize (in bytes), it waits for the pending value until the oldest unflushed content is maxDelayMillis old,
+// so that a quick value doesn't cost a tiny chunk, whereas a slow one doesn't hold up what's already rendered.
+public class AdaptiveFlushPolicy implements FlushPolicy {
+
+    private final int minChunkSize;
+    private final long maxDelayNanos;
+
+    public AdaptiveFlushPolicy(int minChunkSize, long maxDelayMillis) {
+        if (minChunkSize < 0 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Chunk size and delay must not be negative");
+        }
+        this.minChunkSize = minChunkSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    }
+
+    @Override
+    public Decision beforeBlocking(FlushingWriter out, Future<?> pending) {
+        int unflushed = out.getUnflushedSize();
+        if (unflushed == 0) {
+            return Decision.SKIP_EMPTY;
+        }
+        if (pending == null ? !out.isAnyFuturePending() : pending.isDone()) {
+            return Decision.SKIP_READY;
+        }
+        // A LazyTask runs when waited on, so waiting would hold up the flush by the whole task.
+        if (pending != null && unflushed < minChunkSize && !(pending instanceof LazyTask)) {
+            long remainingNanos = maxDelayNanos - out.getUnflushedNanos();
+            if (remainingNanos > 0 && awaitDone(pending, remainingNanos)) {
+                return Decision.COALESCED;
+            }
+        }
+        return Decision.FLUSH;
+    }
+
+    private static boolean awaitDone(Future<?> future, long nanos) {
+        try {
+            future.get(nanos, TimeUnit.NANOSECONDS);
+            return true;
+        } catch (ExecutionException | CancellationException e) {
+            return true; // Done, the caller deals with the failure
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "adaptive(minChunkSize=" + minChunkSize + ", maxDelay=" + TimeUnit.NANOSECONDS.toMillis(maxDelayNanos) + "ms)";
+    }
+
+}
@@ -0,0 +1,15 @@
+package example.streaming.freemarker.custom;
+
+import java.io.IOException;
+
+// Thrown by FlushingWriter once writing to the client has failed, i.e. the connection is broken (typically the
+// user navigated away), so the render should stop rather than carry on producing output no-one will read.
+public class ClientAbortedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ClientAbortedException(Throwable cause) {
+        super("Client connection broken", cause);
+    }
+
+}
@@ -1,14 +1,20 @@
 package example.streaming.freemarker.custom;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import example.streaming.freemarker.custom.directive.Streaming;
+import example.streaming.util.future.Deadline;
 import freemarker.core.Environment;
+import freemarker.ext.servlet.FreemarkerServlet;
+import freemarker.ext.servlet.HttpRequestHashModel;
 import freemarker.template.DefaultObjectWrapper;
+import freemarker.template.TemplateException;
 import freemarker.template.TemplateModel;
 import freemarker.template.TemplateModelException;
 import freemarker.template.Version;
@@ -16,6 +22,7 @@ import freemarker.template.Version;
 public class DeferableObjectWrapper extends DefaultObjectWrapper {
 
     // Prevents waiting forever and should be longer than any actual request.
+    // Requests with a Deadline (see DeadlineConfig) wait no longer than what's left of it instead.
     private static final int DEFAULT_TIMEOUT_SECONDS = 60 * 10;
 
     private final boolean autoFlush;
@@ -51,25 +58,81 @@ public class DeferableObjectWrapper extends DefaultObjectWrapper {
 
     private TemplateModel handleFuture(Future<?> future) throws TemplateModelException {
         Environment env = Environment.getCurrentEnvironment();
+        Streaming.beforeFutureAccess(env);
+        RenderMetrics metrics = RenderMetrics.find(env);
         // Send the already finished content to the browser (streaming or chunked transfer-encoding).
         // Note: doesn't do anything in an attempt block.
-        if (autoFlush && Streaming.isAutoStreamingAllowed(env)) {
+        // Done futures go through this too, so the FlushPolicy decides (and records) what to do for them
+        // (e.g. AdaptiveFlushPolicy skips the flush) and ready asyncDefer items can still be rendered early.
+        if (autoFlush) {
             try {
-                env.getOut().flush();
+                Streaming.flushBeforeBlocking(env, future);
+            } catch (ClientAbortedException e) {
+                // Not a TemplateException, which an attempt block or the TemplateExceptionHandler would handle.
+                throw new UncheckedIOException(e);
             } catch (IOException e) {
                 throw new TemplateModelException("Failed flushing stream", e);
+            } catch (TemplateModelException e) {
+                throw e;
+            } catch (TemplateException e) {
+                throw new TemplateModelException("Failed rendering deferred content before flushing", e);
             }
         }
+        if (future.isDone() && !future.isCancelled()) {
+            // e.g. a cached result (see ResultCache): nothing to wait for.
+            metrics.recordAttributeWait(0);
+            return wrapDone(future);
+        }
+        Deadline deadline = getDeadline(env);
+        long timeoutNanos = deadline != null
+                ? deadline.boundNanos(timeoutSeconds, TimeUnit.SECONDS) : TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        long startNanos = System.nanoTime();
         try {
-            return wrap(future.get(timeoutSeconds, TimeUnit.SECONDS)); // Blocking call
+            Object value = future.get(timeoutNanos, TimeUnit.NANOSECONDS); // Blocking call
+            metrics.recordAttributeWait(System.nanoTime() - startNanos);
+            return wrap(value);
         } catch (ExecutionException e) {
             throw new TemplateModelException("Failure during Future's computation", e);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new TemplateModelException("Interrupted waiting for Future", e);
         } catch (TimeoutException e) {
+            if (deadline != null && deadline.isExpired()) {
+                return expired(future);
+            }
             throw new TemplateModelException("Timed out waiting for Future", e);
+        } catch (CancellationException e) {
+            if (deadline != null && deadline.isExpired()) {
+                return expired(future); // e.g. by LazyTask's watchdog
+            }
+            throw e;
+        }
+    }
+
+    private TemplateModel wrapDone(Future<?> future) throws TemplateModelException {
+        try {
+            return wrap(future.get());
+        } catch (ExecutionException e) {
+            throw new TemplateModelException("Failure during Future's computation", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Can't happen, as it's done
+            throw new TemplateModelException("Interrupted waiting for Future", e);
+        }
+    }
+
+    // Missing rather than failing the page, so that the template can render a fallback (e.g. ${x!"Unavailable"}),
+    // and no longer worked on, since nothing will read it.
+    private static TemplateModel expired(Future<?> future) {
+        future.cancel(true);
+        return null;
+    }
+
+    private static Deadline getDeadline(Environment env) throws TemplateModelException {
+        TemplateModel tm = env == null ? null : env.getDataModelOrSharedVariable(FreemarkerServlet.KEY_REQUEST);
+        if (tm instanceof HttpRequestHashModel) {
+            return (Deadline) ((HttpRequestHashModel) tm).getRequest().getAttribute(Deadline.KEY);
         }
+        return null;
     }
 
 }
@@ -0,0 +1,55 @@
+package example.streaming.freemarker.custom;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// Creates and keeps the FlushPolicy and FlushStatistics of each view, so that flushing can be tuned per route.
+public class FlushPolicies {
+
+    private final Function<String, String> properties;
+    private final Map<String, FlushPolicy> policies = new ConcurrentHashMap<>();
+    private final Map<String, FlushStatistics> statistics = new ConcurrentHashMap<>();
+
+    // Settings are looked up as <viewName>.policy (adaptive or always), <viewName>.min-chunk-size
+    // and <viewName>.max-delay-millis, falling back to default.policy etc.
+    public FlushPolicies(Function<String, String> properties) {
+        this.properties = properties;
+    }
+
+    public FlushPolicy getPolicy(String viewName) {
+        return policies.computeIfAbsent(viewName, this::create);
+    }
+
+    public FlushStatistics getStatistics(String viewName) {
+        return statistics.computeIfAbsent(viewName, name -> new FlushStatistics());
+    }
+
+    public Map<String, FlushStatistics> getAllStatistics() {
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    private FlushPolicy create(String viewName) {
+        String policy = property(viewName, "policy", "always");
+        switch (policy) {
+            case "always":
+                return FlushPolicy.ALWAYS;
+            case "adaptive":
+                return new AdaptiveFlushPolicy(
+                        Integer.parseInt(property(viewName, "min-chunk-size", "1024")),
+                        Long.parseLong(property(viewName, "max-delay-millis", "50")));
+            default:
+                throw new IllegalArgumentException("Unknown flush policy for view " + viewName + ": " + policy);
+        }
+    }
+
+    private String property(String viewName, String key, String defaultValue) {
+        String value = properties.apply(viewName + '.' + key);
+        if (value == null) {
+            value = properties.apply("default." + key);
+        }
+        return value == null ? defaultValue : value.trim();
+    }
+
+}
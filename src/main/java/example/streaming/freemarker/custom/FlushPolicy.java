@@ -0,0 +1,31 @@
+package example.streaming.freemarker.custom;
+
+import java.util.concurrent.Future;
+
+// Decides whether to flush a streamed render's buffered content before something that may block.
+// Shared by future access (DeferableObjectWrapper) and the directives, see Streaming.flushBeforeBlocking.
+public interface FlushPolicy {
+
+    enum Decision {
+        FLUSH,
+        SKIP_EMPTY, // Nothing written since the last flush
+        SKIP_READY, // Nothing to wait for, so the content will soon be followed by more
+        COALESCED // Waited (briefly) for the pending value rather than sending a small chunk
+    }
+
+    // Flushes before every potential block, whether or not it will block (the original behaviour).
+    FlushPolicy ALWAYS = new FlushPolicy() {
+        @Override
+        public Decision beforeBlocking(FlushingWriter out, Future<?> pending) {
+            return Decision.FLUSH;
+        }
+        @Override
+        public String toString() {
+            return "always";
+        }
+    };
+
+    // pending is the Future about to be waited on, or null if that isn't known (e.g. before rendering a body).
+    Decision beforeBlocking(FlushingWriter out, Future<?> pending);
+
+}
@@ -0,0 +1,109 @@
+package example.streaming.freemarker.custom;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts of a view's flush decisions and the sizes (in bytes) of the chunks sent, for tuning its FlushPolicy.
+public class FlushStatistics {
+
+    // Upper bounds of the chunk size histogram's buckets, with a final bucket for anything larger.
+    private static final int[] CHUNK_SIZE_BUCKETS = {256, 1024, 4096, 16384};
+
+    private final LongAdder renders = new LongAdder();
+    private final LongAdder clientAborts = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+    private final LongAdder chunkBytes = new LongAdder();
+    private final LongAccumulator maxChunkBytes = new LongAccumulator(Math::max, 0);
+    private final AtomicLongArray chunkSizeCounts = new AtomicLongArray(CHUNK_SIZE_BUCKETS.length + 1);
+    private final LongAdder[] decisions = new LongAdder[FlushPolicy.Decision.values().length];
+
+    public FlushStatistics() {
+        for (int i = 0; i < decisions.length; i++) {
+            decisions[i] = new LongAdder();
+        }
+    }
+
+    void record(FlushPolicy.Decision decision) {
+        decisions[decision.ordinal()].increment();
+    }
+
+    void recordChunk(int size) {
+        chunks.increment();
+        chunkBytes.add(size);
+        maxChunkBytes.accumulate(size);
+        int bucket = 0;
+        while (bucket < CHUNK_SIZE_BUCKETS.length && size > CHUNK_SIZE_BUCKETS[bucket]) {
+            bucket++;
+        }
+        chunkSizeCounts.incrementAndGet(bucket);
+    }
+
+    void recordRender() {
+        renders.increment();
+    }
+
+    void recordClientAbort() {
+        clientAborts.increment();
+    }
+
+
+    public long getRenderCount() {
+        return renders.sum();
+    }
+
+    // Renders stopped because the client disconnected (not included in getRenderCount).
+    public long getClientAbortCount() {
+        return clientAborts.sum();
+    }
+
+    public long getCount(FlushPolicy.Decision decision) {
+        return decisions[decision.ordinal()].sum();
+    }
+
+    public long getChunkCount() {
+        return chunks.sum();
+    }
+
+    public double getAverageChunkBytes() {
+        long count = chunks.sum();
+        return count == 0 ? 0 : chunkBytes.sum() / (double) count;
+    }
+
+    public long getMaxChunkBytes() {
+        return maxChunkBytes.get();
+    }
+
+    public static int[] getChunkSizeBuckets() {
+        return CHUNK_SIZE_BUCKETS.clone();
+    }
+
+    // Indexed like getChunkSizeBuckets(), plus a final count of chunks larger than the last bucket.
+    public long[] getChunkSizeCounts() {
+        long[] counts = new long[chunkSizeCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = chunkSizeCounts.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("renders=").append(getRenderCount());
+        builder.append(", abortedByClient=").append(getClientAbortCount());
+        for (FlushPolicy.Decision decision : FlushPolicy.Decision.values()) {
+            builder.append(", ").append(decision.name().toLowerCase()).append('=').append(getCount(decision));
+        }
+        builder.append(String.format(", chunks=%d, avgChunk=%.0f, maxChunk=%d, chunkSizes=[",
+                getChunkCount(), getAverageChunkBytes(), getMaxChunkBytes()));
+        long[] counts = getChunkSizeCounts();
+        for (int i = 0; i < counts.length; i++) {
+            builder.append(i == 0 ? "" : ", ")
+                    .append(i < CHUNK_SIZE_BUCKETS.length ? "<=" + CHUNK_SIZE_BUCKETS[i] : ">" + CHUNK_SIZE_BUCKETS[i - 1])
+                    .append(':').append(counts[i]);
+        }
+        return builder.append(']').toString();
+    }
+
+}
@@ -0,0 +1,277 @@
+package example.streaming.freemarker.custom;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+import freemarker.core.Environment;
+
+// The top-level writer of a streamed render. Keeps track of what has been written since the last flush (in bytes of
+// the response's encoding),
+// so that its FlushPolicy can decide whether flushing before a potential block is worthwhile, and records
+// the flushes and chunk sizes in the view's FlushStatistics (and RenderMetrics, if set).
+// Any failure writing to or flushing the response means the client has gone, so from then on every write or flush
+// throws ClientAbortedException, and the onClientAbort action (e.g. cancelling the model's futures) is run once.
+public class FlushingWriter extends Writer {
+
+    private static final Object STATE_KEY = FlushingWriter.class;
+
+    private final Writer out;
+    private final FlushPolicy policy;
+    private final FlushStatistics statistics;
+    private final BooleanSupplier anyFuturePending;
+    private final long createdNanos = System.nanoTime();
+    private RenderMetrics metrics = RenderMetrics.NONE;
+    private boolean sentChunk;
+    private boolean utf8 = true;
+    private float bytesPerChar = 1;
+    private ShellWriter shell;
+    private HtmlContext htmlContext;
+    private PrintWriter errorCheckedWriter;
+    private Runnable onClientAbort;
+    private volatile boolean clientAborted;
+    private int unflushedSize;
+    private long firstUnflushedWriteNanos;
+
+    public FlushingWriter(Writer out, FlushPolicy policy, FlushStatistics statistics, BooleanSupplier anyFuturePending) {
+        this.out = out;
+        this.policy = policy;
+        this.statistics = statistics;
+        this.anyFuturePending = anyFuturePending;
+    }
+
+    // Makes this writer's policy apply to the environment's auto-flushing.
+    public void install(Environment env) {
+        env.setCustomState(STATE_KEY, this);
+    }
+
+    // The response's encoding, UTF-8 unless set. Sizes are exact for UTF-8 and estimated for other encodings.
+    public void setCharset(Charset charset) {
+        utf8 = StandardCharsets.UTF_8.equals(charset);
+        bytesPerChar = charset.newEncoder().averageBytesPerChar();
+    }
+
+    public void setMetrics(RenderMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public RenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    // For when the output goes through a ShellWriter.
+    public void setShell(ShellWriter shell) {
+        this.shell = shell;
+    }
+
+    // Called before the first (and any later) Future access.
+    public void endShell() {
+        if (shell != null) {
+            shell.endShell();
+        }
+    }
+
+    // Follows the HTML written, for isSafeForInsertion(). Includes any shell being skipped.
+    public void trackHtmlContext() {
+        htmlContext = new HtmlContext();
+    }
+
+    // Whether the output so far ends where other markup (e.g. deferred content) can be written (see HtmlContext).
+    // Always false unless trackHtmlContext() was called.
+    public boolean isSafeForInsertion() {
+        return htmlContext != null && htmlContext.isSafe();
+    }
+
+    // Run (on the rendering thread) when the client is found to have disconnected.
+    public void onClientAbort(Runnable action) {
+        this.onClientAbort = action;
+    }
+
+    // For output that ends up in a PrintWriter (e.g. the response's), which swallows exceptions rather than
+    // throwing them, so has to be checked after each flush.
+    public void checkErrorsOf(PrintWriter writer) {
+        this.errorCheckedWriter = writer;
+    }
+
+    public boolean isClientAborted() {
+        return clientAborted;
+    }
+
+    public static FlushingWriter find(Environment env) {
+        return (FlushingWriter) env.getCustomState(STATE_KEY);
+    }
+
+
+    public void flushBeforeBlocking(Future<?> pending) throws IOException {
+        FlushPolicy.Decision decision = policy.beforeBlocking(this, pending);
+        statistics.record(decision);
+        if (decision == FlushPolicy.Decision.FLUSH) {
+            flush();
+        }
+    }
+
+    // In bytes.
+    public int getUnflushedSize() {
+        return unflushedSize;
+    }
+
+    // How long the oldest unflushed content has been waiting.
+    public long getUnflushedNanos() {
+        return unflushedSize == 0 ? 0 : System.nanoTime() - firstUnflushedWriteNanos;
+    }
+
+    public boolean isAnyFuturePending() {
+        return anyFuturePending.getAsBoolean();
+    }
+
+    // Records the content that will be sent when the response completes.
+    public void finish() {
+        if (unflushedSize > 0) {
+            recordChunk();
+        }
+        statistics.recordRender();
+    }
+
+
+    private boolean isSent() {
+        return shell == null || !shell.isSkipping(); // Otherwise it's already been sent
+    }
+
+    private void written(int bytes) {
+        if (unflushedSize == 0 && bytes > 0) {
+            firstUnflushedWriteNanos = System.nanoTime();
+        }
+        unflushedSize += bytes;
+    }
+
+    private int byteLength(char[] cbuf, int off, int len) {
+        if (utf8 && off == 0 && len == cbuf.length) {
+            byte[] encoded = PreEncodedText.lookup(cbuf); // Static text, whose length is already known
+            if (encoded != null) {
+                return encoded.length;
+            }
+        }
+        int bytes = utf8 ? len : (int) Math.ceil(len * bytesPerChar);
+        for (int i = off, end = off + len; utf8 && i < end; i++) {
+            bytes += extraUtf8Bytes(cbuf[i]);
+        }
+        return bytes;
+    }
+
+    private int byteLength(String str, int off, int len) {
+        int bytes = utf8 ? len : (int) Math.ceil(len * bytesPerChar);
+        for (int i = off, end = off + len; utf8 && i < end; i++) {
+            bytes += extraUtf8Bytes(str.charAt(i));
+        }
+        return bytes;
+    }
+
+    // Beyond the one byte counted for every char. Each half of a surrogate pair counts for two of its four bytes.
+    private static int extraUtf8Bytes(char c) {
+        if (c < 0x80) {
+            return 0;
+        }
+        return c < 0x800 || Character.isSurrogate(c) ? 1 : 2;
+    }
+
+    private void ensureNotAborted() throws ClientAbortedException {
+        if (clientAborted) {
+            throw new ClientAbortedException(null);
+        }
+    }
+
+    private ClientAbortedException clientAborted(IOException cause) {
+        if (!clientAborted) {
+            clientAborted = true;
+            statistics.recordClientAbort();
+            if (onClientAbort != null) {
+                onClientAbort.run();
+            }
+        }
+        return new ClientAbortedException(cause);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ensureNotAborted();
+        try {
+            out.write(cbuf, off, len);
+        } catch (IOException e) {
+            throw clientAborted(e);
+        }
+        if (htmlContext != null) {
+            htmlContext.write(cbuf, off, len);
+        }
+        if (isSent()) {
+            written(byteLength(cbuf, off, len));
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        ensureNotAborted();
+        try {
+            out.write(str, off, len);
+        } catch (IOException e) {
+            throw clientAborted(e);
+        }
+        if (htmlContext != null) {
+            htmlContext.write(str, off, len);
+        }
+        if (isSent()) {
+            written(byteLength(str, off, len));
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        ensureNotAborted();
+        try {
+            out.write(c);
+        } catch (IOException e) {
+            throw clientAborted(e);
+        }
+        if (htmlContext != null) {
+            htmlContext.write((char) c);
+        }
+        if (isSent()) {
+            written(1 + (utf8 ? extraUtf8Bytes((char) c) : 0));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureNotAborted();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw clientAborted(e);
+        }
+        if (errorCheckedWriter != null && errorCheckedWriter.checkError()) {
+            throw clientAborted(null);
+        }
+        if (unflushedSize > 0) {
+            recordChunk();
+        }
+    }
+
+    private void recordChunk() {
+        statistics.recordChunk(unflushedSize);
+        metrics.recordChunk(unflushedSize);
+        if (!sentChunk) {
+            sentChunk = true;
+            metrics.recordFirstFlush(System.nanoTime() - createdNanos);
+        }
+        unflushedSize = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+}
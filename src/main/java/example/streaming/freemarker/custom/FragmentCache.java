@@ -0,0 +1,59 @@
+package example.streaming.freemarker.custom;
+
+import java.util.concurrent.TimeUnit;
+
+import example.streaming.util.ExpiringCache;
+
+// Rendered fragments of pages (see FragmentCacheDirective), bounded by their total length in chars
+// with the least recently used evicted first.
+// After its ttl, a fragment may still be served for its stale period whilst a single render refreshes it,
+// so that an expiring widget doesn't make every concurrent request wait on its (slow) data at once.
+public class FragmentCache {
+
+    // The refreshing render writes the new fragment rather than the stale one.
+    private final ExpiringCache<String> fragments;
+
+    public FragmentCache(long maxSize) {
+        fragments = new ExpiringCache<>(maxSize, String::length, false);
+    }
+
+    // Returns null when the caller should render the fragment and then put (or abandon) it.
+    public String get(Object key) {
+        return fragments.get(key).value;
+    }
+
+    public void put(Object key, String html, long ttl, long stale, TimeUnit unit) {
+        long ttlNanos = unit.toNanos(ttl);
+        fragments.put(key, html, ttlNanos, ttlNanos, unit.toNanos(stale));
+    }
+
+    // The render after a get() returned null failed, so a stale fragment can be refreshed by another render.
+    public void abandon(Object key) {
+        fragments.abandon(key);
+    }
+
+
+    public long getHitCount() {
+        return fragments.getHitCount();
+    }
+
+    public long getStaleHitCount() {
+        return fragments.getStaleHitCount();
+    }
+
+    public long getMissCount() {
+        return fragments.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return fragments.getEvictionCount();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FragmentCache[fragments=%d, chars=%d/%d, hits=%d, staleHits=%d, misses=%d, evictions=%d]",
+                fragments.size(), fragments.getWeight(), fragments.getMaxWeight(), getHitCount(), getStaleHitCount(),
+                getMissCount(), getEvictionCount());
+    }
+
+}
@@ -0,0 +1,226 @@
+package example.streaming.freemarker.custom;
+
+// Follows where in the HTML the output written so far has got to, roughly as a browser's tokenizer would,
+// so that markup can be inserted between the template's own markup without changing how either is parsed.
+// It's a safe spot when in text content (not in a tag, comment, or raw text element like script or textarea),
+// and not within a template element or foreign content (svg or math), whose children are parsed differently.
+// Doesn't understand everything (e.g. CDATA, or a tag left open at the end of an unrelated template),
+// so anything it doesn't recognise is treated as unsafe until the next '>'.
+public class HtmlContext {
+
+    private enum State {
+        DATA, TAG_OPEN, END_TAG_OPEN, TAG_NAME, IN_TAG, DOUBLE_QUOTED, SINGLE_QUOTED,
+        MARKUP_DECLARATION, COMMENT, BOGUS, RAW_TEXT
+    }
+
+    private static final int MAX_TAG_NAME = 16; // Longer than any name that matters here
+
+    private State state = State.DATA;
+    private final StringBuilder tagName = new StringBuilder(MAX_TAG_NAME);
+    private boolean endTag;
+    private boolean selfClosing;
+    private int dashes;
+    private String rawTextTag; // The element whose end tag ends RAW_TEXT
+    private int rawTextMatched; // Chars of "</" + rawTextTag seen so far
+    private int templateDepth;
+    private int foreignDepth;
+
+    public boolean isSafe() {
+        return state == State.DATA && templateDepth == 0 && foreignDepth == 0;
+    }
+
+    public void write(char[] cbuf, int off, int len) {
+        for (int i = off, end = off + len; i < end; i++) {
+            write(cbuf[i]);
+        }
+    }
+
+    public void write(String str, int off, int len) {
+        for (int i = off, end = off + len; i < end; i++) {
+            write(str.charAt(i));
+        }
+    }
+
+    public void write(char c) {
+        switch (state) {
+            case DATA:
+                if (c == '<') {
+                    state = State.TAG_OPEN;
+                }
+                break;
+            case TAG_OPEN:
+                if (isAsciiLetter(c)) {
+                    startTagName(c, false);
+                } else if (c == '/') {
+                    state = State.END_TAG_OPEN;
+                } else if (c == '!') {
+                    dashes = 0;
+                    state = State.MARKUP_DECLARATION;
+                } else if (c == '?') {
+                    state = State.BOGUS;
+                } else {
+                    state = c == '<' ? State.TAG_OPEN : State.DATA; // "<" as text
+                }
+                break;
+            case END_TAG_OPEN:
+                if (isAsciiLetter(c)) {
+                    startTagName(c, true);
+                } else {
+                    state = c == '>' ? State.DATA : State.BOGUS;
+                }
+                break;
+            case TAG_NAME:
+                if (c == '>') {
+                    endOfTag();
+                } else if (c == '/' || isWhitespace(c)) {
+                    selfClosing = c == '/';
+                    state = State.IN_TAG;
+                } else if (tagName.length() < MAX_TAG_NAME) {
+                    tagName.append(Character.toLowerCase(c));
+                }
+                break;
+            case IN_TAG:
+                if (c == '>') {
+                    endOfTag();
+                } else if (c == '"') {
+                    state = State.DOUBLE_QUOTED;
+                } else if (c == '\'') {
+                    state = State.SINGLE_QUOTED;
+                } else if (!isWhitespace(c)) {
+                    selfClosing = c == '/';
+                }
+                break;
+            case DOUBLE_QUOTED:
+                if (c == '"') {
+                    selfClosing = false;
+                    state = State.IN_TAG;
+                }
+                break;
+            case SINGLE_QUOTED:
+                if (c == '\'') {
+                    selfClosing = false;
+                    state = State.IN_TAG;
+                }
+                break;
+            case MARKUP_DECLARATION:
+                if (c == '-' && ++dashes == 2) {
+                    dashes = 0;
+                    state = State.COMMENT;
+                } else if (c != '-') {
+                    state = c == '>' ? State.DATA : State.BOGUS; // e.g. a doctype
+                }
+                break;
+            case COMMENT:
+                if (c == '-') {
+                    dashes++;
+                } else if (c == '>' && dashes >= 2) {
+                    state = State.DATA;
+                } else {
+                    dashes = 0;
+                }
+                break;
+            case BOGUS:
+                if (c == '>') {
+                    state = State.DATA;
+                }
+                break;
+            case RAW_TEXT:
+                rawText(c);
+                break;
+        }
+    }
+
+    private void startTagName(char c, boolean endTag) {
+        tagName.setLength(0);
+        tagName.append(Character.toLowerCase(c));
+        this.endTag = endTag;
+        selfClosing = false;
+        state = State.TAG_NAME;
+    }
+
+    private void endOfTag() {
+        state = State.DATA;
+        String name = tagName.toString();
+        if (endTag) {
+            if (name.equals("template") && templateDepth > 0) {
+                templateDepth--;
+            } else if (isForeignRoot(name) && foreignDepth > 0) {
+                foreignDepth--;
+            }
+            return;
+        }
+        if (foreignDepth > 0) {
+            if (isForeignRoot(name) && !selfClosing) {
+                foreignDepth++;
+            }
+            return; // Elements in svg or math (even a script) are parsed as in XML
+        }
+        if (name.equals("template")) {
+            templateDepth++;
+        } else if (isForeignRoot(name)) {
+            if (!selfClosing) {
+                foreignDepth++;
+            }
+        } else if (isRawText(name)) {
+            rawTextTag = name;
+            rawTextMatched = 0;
+            state = State.RAW_TEXT;
+        }
+    }
+
+    private void rawText(char c) {
+        int nameLength = rawTextTag.length();
+        if (rawTextMatched == nameLength + 2) {
+            if (c == '>' || c == '/' || isWhitespace(c)) {
+                tagName.setLength(0);
+                tagName.append(rawTextTag);
+                endTag = true;
+                selfClosing = false;
+                if (c == '>') {
+                    endOfTag();
+                } else {
+                    state = State.IN_TAG;
+                }
+                return;
+            }
+            rawTextMatched = 0;
+        }
+        char expected = rawTextMatched == 0 ? '<' : rawTextMatched == 1 ? '/' : rawTextTag.charAt(rawTextMatched - 2);
+        if (Character.toLowerCase(c) == expected) {
+            rawTextMatched++;
+        } else {
+            rawTextMatched = c == '<' ? 1 : 0;
+        }
+    }
+
+    private static boolean isRawText(String name) {
+        switch (name) {
+            case "script":
+            case "style":
+            case "textarea":
+            case "title":
+            case "xmp":
+            case "iframe":
+            case "noembed":
+            case "noframes":
+            case "noscript":
+            case "plaintext":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isForeignRoot(String name) {
+        return name.equals("svg") || name.equals("math");
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+}
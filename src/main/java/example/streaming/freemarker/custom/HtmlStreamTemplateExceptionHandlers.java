@@ -28,6 +28,9 @@ public interface HtmlStreamTemplateExceptionHandlers {
         @Override
         public void handleTemplateException(
                 TemplateException te, Environment env, Writer out) throws TemplateException {
+            if (isClientAborted(env)) {
+                throw te; // Nowhere to write the error to
+            }
             if (out instanceof ExceptionAwareWriter) {
                 out = ((ExceptionAwareWriter) out).getExceptionWriter();
             }
@@ -45,12 +48,21 @@ public interface HtmlStreamTemplateExceptionHandlers {
     }
 
 
+    static boolean isClientAborted(Environment env) {
+        FlushingWriter flushingWriter = FlushingWriter.find(env);
+        return flushingWriter != null && flushingWriter.isClientAborted();
+    }
+
+
     // For development use
     TemplateExceptionHandler JS_ENHANCED_HTML_DEBUG_HANDLER = new TemplateExceptionHandler() {
         private final TemplateExceptionHandler BASE_HANDLER = TemplateExceptionHandler.HTML_DEBUG_HANDLER;
         @Override
         public void handleTemplateException(
                 TemplateException te, Environment env, Writer out) throws TemplateException {
+            if (isClientAborted(env)) {
+                throw te; // Nowhere to write the error to
+            }
             if (out instanceof ExceptionAwareWriter) {
                 out = ((ExceptionAwareWriter) out).getExceptionWriter();
             }
@@ -0,0 +1,88 @@
+package example.streaming.freemarker.custom;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.swing.tree.TreeNode;
+
+import freemarker.core.Environment;
+import freemarker.core.TemplateElement;
+import freemarker.core.TextBlock;
+import freemarker.template.Template;
+
+// The UTF-8 encoding of each template's static text, so that it's only encoded once rather than on every request.
+// FreeMarker writes a static text block by passing its whole char array to Writer.write,
+// so the array's identity is enough to find its encoding. Kept as a custom attribute of the Template,
+// so that a reloaded template gets encoded afresh.
+public class PreEncodedText {
+
+    private static final String TEMPLATE_ATTRIBUTE = PreEncodedText.class.getName();
+    private static final Field TEXT_FIELD = findTextField();
+
+    private PreEncodedText() {
+    }
+
+    // Returns null unless text is a static text block of the template currently being processed.
+    static byte[] lookup(char[] text) {
+        Environment env = Environment.getCurrentEnvironment();
+        if (env == null || TEXT_FIELD == null) {
+            return null;
+        }
+        return forTemplate(env.getCurrentTemplate()).get(text);
+    }
+
+    @SuppressWarnings({"unchecked", "deprecation"}) // getRootTreeNode() is internal rather than going away in 2.3
+    static Map<char[], byte[]> forTemplate(Template template) {
+        Map<char[], byte[]> encoded = (Map<char[], byte[]>) template.getCustomAttribute(TEMPLATE_ATTRIBUTE);
+        if (encoded == null) {
+            Map<char[], byte[]> map = new IdentityHashMap<>();
+            collect(template.getRootTreeNode(), map);
+            encoded = Collections.unmodifiableMap(map);
+            template.setCustomAttribute(TEMPLATE_ATTRIBUTE, encoded); // Racing threads produce equivalent maps
+        }
+        return encoded;
+    }
+
+    @SuppressWarnings("deprecation") // As is TemplateElement, whose text blocks are read reflectively (see getText)
+    private static void collect(TemplateElement element, Map<char[], byte[]> encoded) {
+        if (element == null) {
+            return;
+        }
+        if (element instanceof TextBlock) {
+            char[] text = getText((TextBlock) element);
+            if (text != null && text.length > 0) {
+                encoded.put(text, new String(text).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        for (int i = 0; i < element.getChildCount(); i++) {
+            TreeNode child = element.getChildAt(i);
+            if (child instanceof TemplateElement) {
+                collect((TemplateElement) child, encoded);
+            }
+        }
+    }
+
+    private static char[] getText(TextBlock textBlock) {
+        try {
+            return (char[]) TEXT_FIELD.get(textBlock);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    // TextBlock doesn't expose its text, so this relies on the field's name (as of FreeMarker 2.3.32).
+    // Without it, static text is just encoded like any other text.
+    private static Field findTextField() {
+        try {
+            Field field = TextBlock.class.getDeclaredField("text");
+            field.setAccessible(true);
+            return field.getType() == char[].class ? field : null;
+        } catch (NoSuchFieldException | RuntimeException e) {
+            return null;
+        }
+    }
+
+}
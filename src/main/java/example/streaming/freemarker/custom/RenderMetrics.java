@@ -0,0 +1,52 @@
+package example.streaming.freemarker.custom;
+
+import freemarker.core.Environment;
+
+// Receives a view's timings (in nanoseconds) and counts, for monitoring (see MetricsConfig). There's one per view,
+// like its FlushStatistics, and the template's directives and object wrapper reach it through the FlushingWriter.
+public interface RenderMetrics {
+
+    RenderMetrics NONE = new RenderMetrics() {
+        @Override
+        public String toString() {
+            return "RenderMetrics.NONE";
+        }
+    };
+
+    // How long the template waited for a model attribute's Future, zero if it had already completed.
+    default void recordAttributeWait(long nanos) {
+    }
+
+    // How long a lazily run attribute took to run (see LazyTask), whichever thread ran it.
+    default void recordLazyTaskRun(long nanos) {
+    }
+
+    // How long waiting for the next model attribute to complete took (see TrackedModelFutures).
+    default void recordCompletionWait(long nanos) {
+    }
+
+    // Each chunk of the response sent, in bytes.
+    default void recordChunk(int bytes) {
+    }
+
+    // From the start of the render until its first chunk was sent.
+    default void recordFirstFlush(long nanos) {
+    }
+
+    default void recordRender(long nanos) {
+    }
+
+    // Rendering a deferred item's body (see RenderDeferredHtmlDirective).
+    default void recordDeferredRender(long nanos) {
+    }
+
+    // Futures the view cancelled, e.g. because the template didn't use them or the client went away.
+    default void recordCancelledFutures(int count) {
+    }
+
+    static RenderMetrics find(Environment env) {
+        FlushingWriter out = env == null ? null : FlushingWriter.find(env);
+        return out == null ? NONE : out.getMetrics();
+    }
+
+}
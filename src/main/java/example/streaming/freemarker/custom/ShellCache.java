@@ -0,0 +1,172 @@
+package example.streaming.freemarker.custom;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import freemarker.template.Template;
+
+// The static shells of pages, i.e. what their templates output before the first Future access,
+// keyed by view name, locale and the request attributes the shell varies by.
+// A shell can be sent as soon as a request arrives, with the render then dropping its own copy (see ShellWriter).
+public class ShellCache {
+
+    // Request attribute of the Key to record or verify the view's shell with.
+    public static final String KEY_ATTRIBUTE = ShellCache.class.getName() + ".KEY";
+    // Request attribute of the Shell that has already been sent.
+    public static final String SERVED_ATTRIBUTE = ShellCache.class.getName() + ".SERVED";
+
+    private final Map<Key, Shell> shells;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder invalidated = new LongAdder();
+    private final LongAdder mismatched = new LongAdder();
+
+    public ShellCache(int maxEntries) {
+        this.shells = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Shell> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public interface Templates {
+        Template get(String name) throws IOException;
+    }
+
+    // Returns null if there's no shell, or if its template has since been reloaded (checked using currentTemplates).
+    public Shell get(Key key, Templates currentTemplates) throws IOException {
+        Shell shell;
+        synchronized (shells) {
+            shell = shells.get(key);
+        }
+        if (shell == null) {
+            return null;
+        }
+        if (currentTemplates.get(shell.getTemplateName()) != shell.template) {
+            synchronized (shells) {
+                shells.remove(key, shell);
+            }
+            invalidated.increment();
+            return null;
+        }
+        hits.increment();
+        return shell;
+    }
+
+    void put(Key key, Shell shell) {
+        synchronized (shells) {
+            shells.put(key, shell);
+        }
+        recorded.increment();
+    }
+
+    // The render's shell didn't match what was sent, e.g. because the shell isn't actually static.
+    public void mismatched(Key key) {
+        synchronized (shells) {
+            shells.remove(key);
+        }
+        mismatched.increment();
+    }
+
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getRecordedCount() {
+        return recorded.sum();
+    }
+
+    public long getInvalidatedCount() {
+        return invalidated.sum();
+    }
+
+    public long getMismatchedCount() {
+        return mismatched.sum();
+    }
+
+    @Override
+    public String toString() {
+        int size;
+        synchronized (shells) {
+            size = shells.size();
+        }
+        return String.format("ShellCache[size=%d, hits=%d, recorded=%d, invalidated=%d, mismatched=%d]",
+                size, getHitCount(), getRecordedCount(), getInvalidatedCount(), getMismatchedCount());
+    }
+
+
+    public static final class Key {
+        private final String viewName;
+        private final Locale locale;
+        private final List<Object> attributes;
+
+        public Key(String viewName, Locale locale, List<Object> attributes) {
+            this.viewName = Objects.requireNonNull(viewName);
+            this.locale = locale;
+            this.attributes = attributes;
+        }
+
+        public String getViewName() {
+            return viewName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return viewName.equals(key.viewName)
+                    && Objects.equals(locale, key.locale)
+                    && Objects.equals(attributes, key.attributes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(viewName, locale, attributes);
+        }
+    }
+
+    public static final class Shell {
+        private final Template template;
+        private final String text;
+        private final byte[] bytes;
+        private final String contentType;
+
+        Shell(Template template, String text, String contentType) {
+            this.template = template;
+            this.text = text;
+            this.bytes = text.getBytes(StandardCharsets.UTF_8);
+            this.contentType = contentType;
+        }
+
+        public String getTemplateName() {
+            return template.getName();
+        }
+
+        String getText() {
+            return text;
+        }
+
+        // UTF-8
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+}
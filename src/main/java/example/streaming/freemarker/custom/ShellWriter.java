@@ -0,0 +1,195 @@
+package example.streaming.freemarker.custom;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.function.Predicate;
+
+import freemarker.template.Template;
+import freemarker.template.TemplateCollectionModel;
+import freemarker.template.TemplateHashModel;
+import freemarker.template.TemplateHashModelEx;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+
+// Sits between a render's FlushingWriter and the response to deal with the page's static shell:
+// either recording it into the ShellCache, or dropping it because the cached shell has already been sent.
+// The shell ends with the first Future access (see Streaming.beforeFutureAccess), and is only recorded if nothing
+// else that may vary between requests was read before then (see watch).
+// If the page turns out not to match a shell already sent, the render fails rather than appending the rest of the
+// page to it, as it's too late to take back what was sent.
+public class ShellWriter extends Writer {
+
+    private final Writer out;
+    private final ShellCache cache;
+    private final ShellCache.Key key;
+    private final Template template;
+    private final String contentType;
+    private final StringBuilder recorded;
+    private final String sent;
+    private int position; // In the sent shell
+    private boolean inShell = true;
+    private boolean varying; // Read something that may vary between requests whilst in the shell
+    private boolean diverged; // From the shell sent
+
+    private ShellWriter(Writer out, ShellCache cache, ShellCache.Key key,
+                        Template template, String contentType, String sent) {
+        this.out = out;
+        this.cache = cache;
+        this.key = key;
+        this.template = template;
+        this.contentType = contentType;
+        this.sent = sent;
+        this.recorded = sent == null ? new StringBuilder() : null;
+    }
+
+    public static ShellWriter recording(Writer out, ShellCache cache, ShellCache.Key key,
+                                        Template template, String contentType) {
+        return new ShellWriter(out, cache, key, template, contentType, null);
+    }
+
+    public static ShellWriter skipping(Writer out, ShellCache cache, ShellCache.Key key, ShellCache.Shell sent) {
+        return new ShellWriter(out, cache, key, null, null, sent.getText());
+    }
+
+    // Whether output is being dropped because it was already sent.
+    public boolean isSkipping() {
+        return inShell && sent != null;
+    }
+
+    // Returns the render's data model, noting any value read from it whilst in the shell, except those named by
+    // ignored (e.g. Futures, as accessing one ends the shell anyway).
+    public TemplateHashModelEx watch(TemplateHashModelEx model, Predicate<String> ignored) {
+        return new WatchedModel(model, ignored);
+    }
+
+    // The data model that model watches, if watched.
+    public static TemplateHashModel unwatched(TemplateHashModel model) {
+        return model instanceof WatchedModel ? ((WatchedModel) model).model : model;
+    }
+
+    // Something that may vary between requests was read, e.g. a request parameter.
+    public void readVarying() {
+        if (inShell) {
+            varying = true;
+        }
+    }
+
+    public void endShell() {
+        if (!inShell) {
+            return;
+        }
+        inShell = false;
+        if (sent == null) {
+            if (!varying) {
+                cache.put(key, new ShellCache.Shell(template, recorded.toString(), contentType));
+            }
+        } else if (position != sent.length()) {
+            diverged = true; // Fails the next write
+            cache.mismatched(key);
+        } else if (varying) {
+            cache.mismatched(key); // Matched this time, but mustn't be relied on
+        }
+    }
+
+    // The render finished (without accessing a Future if still in the shell, so there's no shell to record).
+    public void finish() throws IOException {
+        if (sent != null) {
+            endShell();
+        }
+        inShell = false;
+        checkNotDiverged();
+    }
+
+    private void checkNotDiverged() throws IOException {
+        if (diverged) {
+            throw new IOException("Page doesn't match the cached shell already sent for view " + key.getViewName());
+        }
+    }
+
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        checkNotDiverged();
+        if (!inShell) {
+            out.write(cbuf, off, len);
+        } else if (sent == null) {
+            recorded.append(cbuf, off, len);
+            out.write(cbuf, off, len);
+        } else {
+            int matched = 0;
+            while (matched < len && position < sent.length() && sent.charAt(position) == cbuf[off + matched]) {
+                position++;
+                matched++;
+            }
+            if (matched < len) {
+                inShell = false;
+                diverged = true;
+                cache.mismatched(key);
+                checkNotDiverged();
+            }
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (inShell || diverged) {
+            write(str.toCharArray(), off, len);
+        } else {
+            out.write(str, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+
+
+    private class WatchedModel implements TemplateHashModelEx {
+        private final TemplateHashModelEx model;
+        private final Predicate<String> ignored;
+
+        WatchedModel(TemplateHashModelEx model, Predicate<String> ignored) {
+            this.model = model;
+            this.ignored = ignored;
+        }
+
+        @Override
+        public TemplateModel get(String key) throws TemplateModelException {
+            TemplateModel value = model.get(key);
+            if (value != null && !ignored.test(key)) {
+                readVarying();
+            }
+            return value;
+        }
+
+        @Override
+        public boolean isEmpty() throws TemplateModelException {
+            return model.isEmpty();
+        }
+
+        @Override
+        public int size() throws TemplateModelException {
+            return model.size();
+        }
+
+        @Override
+        public TemplateCollectionModel keys() throws TemplateModelException {
+            readVarying();
+            return model.keys();
+        }
+
+        @Override
+        public TemplateCollectionModel values() throws TemplateModelException {
+            readVarying();
+            return model.values();
+        }
+    }
+
+}
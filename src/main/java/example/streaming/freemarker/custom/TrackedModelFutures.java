@@ -20,6 +20,8 @@ import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import example.streaming.util.future.Deadline;
+
 public class TrackedModelFutures {
 
     public static final String KEY = "mvc.model.future.tracking";
@@ -28,8 +30,10 @@ public class TrackedModelFutures {
     private final Map<String, Future<Object>> futureAttributes;
     private final BlockingQueue<Future<Object>> completionQueue;
     private final int timeoutSeconds;
+    private volatile Deadline deadline;
+    private volatile RenderMetrics metrics = RenderMetrics.NONE;
     private Set<String> futureAttributeNames;
-    private Iterable<Collection<String>> completionIterator;
+    private Iterable<Collection<String>> completionIterable;
     private final Set<CompletableFuture<?>> trackedCompletableFutures = new HashSet<>();
 
     public TrackedModelFutures(
@@ -54,6 +58,16 @@ public class TrackedModelFutures {
     }
 
 
+    // Bounds waits for the next completion by what's left of the request's budget. Once it has passed, the futures
+    // that still haven't completed are returned anyway (so whatever waits on them can render a fallback).
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    public void setMetrics(RenderMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     public Set<String> getAttributeNames() {
         ensureReadOnly();
         return futureAttributeNames;
@@ -61,7 +75,17 @@ public class TrackedModelFutures {
 
     public Iterable<Collection<String>> getCompletionIterable() {
         ensureReadOnly();
-        return completionIterator;
+        return completionIterable;
+    }
+
+    public CompletionIterator getCompletionIterator() {
+        return (CompletionIterator) getCompletionIterable().iterator();
+    }
+
+    // Each next() returns the attribute names of a completed future, blocking until one completes.
+    public interface CompletionIterator extends Iterator<Collection<String>> {
+        // Like next(), but returns null rather than blocking when no more have completed yet.
+        Collection<String> poll();
     }
 
     // Support futures not created by AsyncModel.
@@ -89,6 +113,13 @@ public class TrackedModelFutures {
         });
     }
 
+    // Including CompletableFutures added by the view, e.g. once the client has gone.
+    public void cancelAll() {
+        for (Future<Object> future : futureAttributes.values()) {
+            future.cancel(true);
+        }
+    }
+
     public boolean isReadOnly() {
         return futureAttributeNames != null;
     }
@@ -99,8 +130,9 @@ public class TrackedModelFutures {
         }
 
         futureAttributeNames = futureAttributes.keySet();
-        completionIterator = new Iterable<>() {
+        completionIterable = new Iterable<>() {
             final List<Collection<String>> allCompleted = new ArrayList<>();
+            final Set<Future<?>> completedFutures = new HashSet<>(); // Including expired ones
             final Map<Future<Object>, List<String>> attributeLookup = futureAttributes.entrySet().stream()
                     .collect(Collectors.groupingBy(
                             Map.Entry::getValue,
@@ -108,7 +140,7 @@ public class TrackedModelFutures {
 
             @Override
             public Iterator<Collection<String>> iterator() {
-                return new Iterator<>() {
+                return new CompletionIterator() {
                     final Iterator<Collection<String>> doneIt = allCompleted.isEmpty()
                             ? Collections.emptyIterator() : new ArrayList<>(allCompleted).iterator(); // Snapshot
                     int pending = attributeLookup.size() - allCompleted.size();
@@ -134,12 +166,51 @@ public class TrackedModelFutures {
                         }
                     }
 
+                    @Override
+                    public Collection<String> poll() {
+                        if (doneIt.hasNext()) {
+                            return doneIt.next();
+                        }
+                        Future<?> future;
+                        do {
+                            future = pending == 0 ? null : completionQueue.poll();
+                        } while (future != null && completedFutures.contains(future)); // Already expired
+                        return future == null ? null : completed(future);
+                    }
+
                     private Collection<String> nextFromQueue() throws InterruptedException {
-                        Future<?> future = completionQueue.poll(timeoutSeconds, TimeUnit.SECONDS);
-                        if (future == null) {
-                            throw new RuntimeException(new TimeoutException());
+                        while (true) {
+                            Deadline deadline = TrackedModelFutures.this.deadline;
+                            long timeoutNanos = deadline != null
+                                    ? deadline.boundNanos(timeoutSeconds, TimeUnit.SECONDS)
+                                    : TimeUnit.SECONDS.toNanos(timeoutSeconds);
+                            long startNanos = System.nanoTime();
+                            Future<?> future = completionQueue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+                            metrics.recordCompletionWait(System.nanoTime() - startNanos);
+                            if (future == null) {
+                                if (deadline != null && deadline.isExpired()) {
+                                    return completed(anyIncomplete());
+                                }
+                                throw new RuntimeException(new TimeoutException());
+                            }
+                            if (!completedFutures.contains(future)) {
+                                return completed(future);
+                            }
                         }
+                    }
+
+                    private Future<?> anyIncomplete() {
+                        for (Future<Object> future : attributeLookup.keySet()) {
+                            if (!completedFutures.contains(future)) {
+                                return future;
+                            }
+                        }
+                        throw new IllegalStateException("Something has gone wrong");
+                    }
+
+                    private Collection<String> completed(Future<?> future) {
                         pending--;
+                        completedFutures.add(future);
                         Collection<String> attribute = attributeLookup.get(future);
                         Objects.requireNonNull(attribute, "Something has gone wrong");
                         allCompleted.add(attribute);
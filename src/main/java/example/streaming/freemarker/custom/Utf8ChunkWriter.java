@@ -0,0 +1,198 @@
+package example.streaming.freemarker.custom;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Encodes to UTF-8 straight into a pooled byte buffer that is written to the response's OutputStream,
+// instead of going through the servlet PrintWriter's encoder.
+// A template's static text is encoded once (see PreEncodedText) and just copied into the buffer.
+// Not thread-safe; call release() once rendering has finished to hand over the last bytes and return the buffer
+// (or close() to end the response there and then).
+public class Utf8ChunkWriter extends Writer {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final BufferPool POOL = new BufferPool(256);
+
+    private final OutputStream out;
+    private byte[] buffer;
+    private int count;
+    private char highSurrogate; // Pending first half of a pair split across writes
+
+    public Utf8ChunkWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public static boolean isSupported(String characterEncoding) {
+        return characterEncoding != null
+                && (StandardCharsets.UTF_8.name().equalsIgnoreCase(characterEncoding)
+                || "UTF8".equalsIgnoreCase(characterEncoding));
+    }
+
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (off == 0 && len == cbuf.length && highSurrogate == 0) {
+            byte[] encoded = PreEncodedText.lookup(cbuf);
+            if (encoded != null) {
+                writeBytes(encoded);
+                return;
+            }
+        }
+        for (int i = off, end = off + len; i < end; i++) {
+            writeChar(cbuf[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off, end = off + len; i < end; i++) {
+            writeChar(str.charAt(i));
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        writeChar((char) c);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBuffer();
+        out.flush();
+    }
+
+    // Ends the response, as closing the servlet's PrintWriter would, e.g. for the exception handlers
+    // (see HtmlStreamTemplateExceptionHandlers) to have the browser act on what they've written.
+    @Override
+    public void close() throws IOException {
+        release();
+        out.flush();
+        out.close();
+    }
+
+    // Writes any buffered bytes to the stream (without flushing or closing it) and returns the buffer to the pool.
+    // For the normal end of a render, leaving the stream open, since the response is still used afterwards.
+    public void release() throws IOException {
+        try {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                writeByte((byte) '?');
+            }
+            writeBuffer();
+        } finally {
+            if (buffer != null) {
+                POOL.release(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+
+    private void writeChar(char c) throws IOException {
+        if (c < 0x80 && highSurrogate == 0) {
+            writeByte((byte) c);
+        } else {
+            writeNonAscii(c);
+        }
+    }
+
+    private void writeNonAscii(char c) throws IOException {
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                ensureCapacity(4);
+                buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                return;
+            }
+            writeByte((byte) '?'); // Unpaired, replaced like the JDK's encoder does
+        }
+
+        if (c < 0x80) {
+            writeByte((byte) c);
+        } else if (c < 0x800) {
+            ensureCapacity(2);
+            buffer[count++] = (byte) (0xC0 | (c >> 6));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            writeByte((byte) '?');
+        } else {
+            ensureCapacity(3);
+            buffer[count++] = (byte) (0xE0 | (c >> 12));
+            buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    private void writeByte(byte b) throws IOException {
+        ensureCapacity(1);
+        buffer[count++] = b;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (bytes.length >= BUFFER_SIZE) {
+            writeBuffer();
+            out.write(bytes);
+        } else {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, count, bytes.length);
+            count += bytes.length;
+        }
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (buffer == null) {
+            buffer = POOL.acquire();
+        } else if (count + length > buffer.length) {
+            writeBuffer();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        if (count > 0) {
+            int length = count;
+            count = 0;
+            out.write(buffer, 0, length);
+        }
+    }
+
+
+    private static class BufferPool {
+        private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final int maxSize;
+
+        BufferPool(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        byte[] acquire() {
+            byte[] buffer = buffers.poll();
+            if (buffer == null) {
+                return new byte[BUFFER_SIZE];
+            }
+            size.decrementAndGet();
+            return buffer;
+        }
+
+        void release(byte[] buffer) {
+            if (size.incrementAndGet() <= maxSize) {
+                buffers.offer(buffer);
+            } else {
+                size.decrementAndGet(); // Let it be garbage collected
+            }
+        }
+    }
+
+}
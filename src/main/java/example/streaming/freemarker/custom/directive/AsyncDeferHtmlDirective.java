@@ -1,17 +1,22 @@
 package example.streaming.freemarker.custom.directive;
 
-import static freemarker.template.Configuration.*;
-
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.Writer;
 import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
@@ -50,6 +55,20 @@ public class AsyncDeferHtmlDirective implements TemplateDirectiveModel {
     private static final Object PENDING_STATE_KEY = new Object();
     static final String START_DATA = "AD$";
     static final String END_DATA = "/AD$";
+    private static final String FALLBACK_END = "<!--" + END_DATA + "-->";
+    private static final Object EARLY_RENDERER_STATE_KEY = new Object();
+
+    private final AsyncRenderDeferredHtmlDirective earlyRenderer;
+
+    public AsyncDeferHtmlDirective() {
+        this(null);
+    }
+
+    // With an earlyRenderer, bodies whose dependencies have completed are also rendered at flush points before
+    // renderAsyncDeferred, wherever the output has got to if that's a safe spot (see renderReadyEarly).
+    public AsyncDeferHtmlDirective(AsyncRenderDeferredHtmlDirective earlyRenderer) {
+        this.earlyRenderer = earlyRenderer;
+    }
 
     @Override
     public void execute(
@@ -62,26 +81,30 @@ public class AsyncDeferHtmlDirective implements TemplateDirectiveModel {
             throw new TemplateModelException("This directive doesn't allow loop variables.");
         }
 
-        if (!params.containsKey(DEPENDENCIES_PARAM)) {
-            throw new TemplateModelException("Expected parameter " + DEPENDENCIES_PARAM + " not found");
-        }
-        if (params.size() > 2) {
-            throw new TemplateModelException("Found " + params.size() + " parameters and expected <= 2");
+        for (Object name : params.keySet()) {
+            if (!DEPENDENCIES_PARAM.equals(name) && !FALLBACK_PARAM.equals(name)) {
+                throw new TemplateModelException("Unexpected parameter " + name);
+            }
         }
+        FragmentCacheDirective.checkNotCaching(env, "asyncDefer");
 
-        Set<String> dependencies = extractDependencies(params.get(DEPENDENCIES_PARAM));
-        checkDependencies(dependencies, env);
+        Set<String> dependencies;
+        if (params.containsKey(DEPENDENCIES_PARAM)) {
+            dependencies = extractDependencies(params.get(DEPENDENCIES_PARAM));
+            checkDependencies(dependencies, env);
+        } else {
+            dependencies = inferDependencies(env);
+        }
+        if (earlyRenderer != null) {
+            env.setCustomState(EARLY_RENDERER_STATE_KEY, earlyRenderer);
+        }
 
-        if (params.size() == 1) {
+        Object fallback = params.get(FALLBACK_PARAM);
+        if (fallback == null) {
             processMacro(SHARED_FALLBACK_MACRO, null, dependencies, env, body);
         }
         else {
-            @SuppressWarnings({"rawtypes", "unchecked"})
-            Map.Entry entry = ((Set<Map.Entry>)params.entrySet()).iterator().next();
-            if (!FALLBACK_PARAM.equals(entry.getKey())) {
-                throw new TemplateModelException("Expected param " + FALLBACK_PARAM + ", found: " + entry.getKey());
-            }
-            processWithFallback(entry.getValue(), dependencies, body, env);
+            processWithFallback(fallback, dependencies, body, env);
         }
     }
 
@@ -149,18 +172,12 @@ public class AsyncDeferHtmlDirective implements TemplateDirectiveModel {
             throws TemplateException, IOException {
         String fallbackId = getNextFallbackId(env);
         Template currentTemplate = env.getCurrentDirectiveCallPlace().getTemplate();
+        Template macroInvoke = FallbackMacroTemplates.get(buildFullMacroName(macroName, namespace), currentTemplate);
 
-        boolean squareBrackets = currentTemplate.getActualTagSyntax() == SQUARE_BRACKET_TAG_SYNTAX;
-        macroName = buildFullMacroName(macroName, namespace);
-        String macroInvoke = squareBrackets ? "[@" + macroName + " /]" : "<@" + macroName + " />";
-
-        String fallback = buildFallbackContent(macroInvoke, fallbackId);
-        env.include(new Template(
-                null, null,
-                new StringReader(fallback),
-                currentTemplate.getConfiguration(),
-                currentTemplate.getParserConfiguration(),
-                currentTemplate.getEncoding()));
+        Writer out = env.getOut();
+        out.write(buildFallbackStart(fallbackId));
+        env.include(macroInvoke);
+        out.write(FALLBACK_END);
 
         addToPending(new PendingItem(dependencies, body, fallbackId), env);
     }
@@ -175,9 +192,11 @@ public class AsyncDeferHtmlDirective implements TemplateDirectiveModel {
     }
 
     private static String buildFallbackContent(String fallback, String id) {
-        return "<!--" + START_DATA + "-->" +
-                "<template id=\"" + id + "\"></template>" + fallback +
-                "<!--" + END_DATA + "-->";
+        return buildFallbackStart(id) + fallback + FALLBACK_END;
+    }
+
+    private static String buildFallbackStart(String id) {
+        return "<!--" + START_DATA + "-->" + "<template id=\"" + id + "\"></template>";
     }
 
     private static Set<String> extractDependencies(Object param) throws TemplateModelException {
@@ -187,7 +206,7 @@ public class AsyncDeferHtmlDirective implements TemplateDirectiveModel {
                 throw new TemplateModelException(
                         "Detected a string with a comma in " + DEPENDENCIES_PARAM + "; please use a sequence instead");
             }
-            Set<String> dependencies = new HashSet<>(); // Needs to be mutable.
+            Set<String> dependencies = new HashSet<>();
             dependencies.add(dep);
             return dependencies;
         }
@@ -224,6 +243,14 @@ public class AsyncDeferHtmlDirective implements TemplateDirectiveModel {
         }
     }
 
+    // The futures the body refers to (see TemplateReferences), for when they aren't listed.
+    // Any it uses that can't be found statically are still waited for, but only once the body is being rendered.
+    private static Set<String> inferDependencies(Environment env) throws TemplateModelException {
+        Set<String> dependencies = new HashSet<>(TemplateReferences.get(env));
+        dependencies.retainAll(getFuturesState(env).getAttributeNames());
+        return dependencies;
+    }
+
     private static TrackedModelFutures getFuturesState(Environment env) throws TemplateModelException {
         TemplateModel tm = env.getDataModelOrSharedVariable(FreemarkerServlet.KEY_REQUEST);
         if (tm instanceof HttpRequestHashModel) {
@@ -239,10 +266,22 @@ public class AsyncDeferHtmlDirective implements TemplateDirectiveModel {
     }
 
     private static String getNextFallbackId(Environment env) {
-        Integer counter = (Integer) env.getCustomState(ID_COUNTER_STATE_KEY);
-        counter = counter==null ? 1 : counter + 1;
-        env.setCustomState(ID_COUNTER_STATE_KEY, counter);
-        return FALLBACK_ID_PREFIX + counter;
+        return FALLBACK_ID_PREFIX + getIdCounter(env).incrementAndGet();
+    }
+
+    // Shared with forks (see ForkedEnvironment), so that their fallbacks' ids are still unique within the page.
+    private static AtomicInteger getIdCounter(Environment env) {
+        AtomicInteger counter = (AtomicInteger) env.getCustomState(ID_COUNTER_STATE_KEY);
+        if (counter == null) {
+            counter = new AtomicInteger();
+            env.setCustomState(ID_COUNTER_STATE_KEY, counter);
+        }
+        return counter;
+    }
+
+    // Call on the thread using env, before rendering anything in the fork.
+    static void prepareFork(Environment env, Environment fork) {
+        fork.setCustomState(ID_COUNTER_STATE_KEY, getIdCounter(env));
     }
 
     private static String findMacroNamespace(Macro macro, Environment env) throws TemplateModelException {
@@ -264,11 +303,9 @@ public class AsyncDeferHtmlDirective implements TemplateDirectiveModel {
     }
 
     private static void addToPending(PendingItem pending, Environment env) {
-        @SuppressWarnings("unchecked")
-        Set<PendingItem> deferreds = (Set<PendingItem>)
-                env.getCustomState(PENDING_STATE_KEY);
+        PendingItems deferreds = (PendingItems) env.getCustomState(PENDING_STATE_KEY);
         if (deferreds == null) {
-            deferreds = new HashSet<>();
+            deferreds = new PendingItems();
             env.setCustomState(PENDING_STATE_KEY, deferreds);
         }
         deferreds.add(pending);
@@ -278,6 +315,7 @@ public class AsyncDeferHtmlDirective implements TemplateDirectiveModel {
         final Set<String> dependencies;
         final TemplateDirectiveBody body;
         final String id;
+        int unresolved; // Dependencies still to complete
 
         public PendingItem(Set<String> dependencies, TemplateDirectiveBody body, String id) {
             this.dependencies = dependencies;
@@ -286,76 +324,160 @@ public class AsyncDeferHtmlDirective implements TemplateDirectiveModel {
         }
     }
 
-    static Iterator<Map.Entry<String, TemplateDirectiveBody>>
-            getAndConsumePending(Environment env) throws TemplateModelException {
-        @SuppressWarnings("unchecked")
-        Set<PendingItem> pendingItems = (Set<PendingItem>) env.getCustomState(PENDING_STATE_KEY);
+    // Pending items indexed by the dependencies they're waiting on, so that each completed future only touches
+    // the items that depend on it and a ready item is found without scanning all of them.
+    private static class PendingItems {
+        private final Map<String, List<PendingItem>> waiting = new HashMap<>();
+        private final Queue<PendingItem> ready = new ArrayDeque<>();
+        // Dependencies already completed, which items added later (e.g. when nested) don't wait on.
+        private final Set<String> resolved = new HashSet<>();
+        private int size;
+
+        void add(PendingItem item) {
+            for (String dependency : item.dependencies) {
+                if (!resolved.contains(dependency)) {
+                    waiting.computeIfAbsent(dependency, k -> new ArrayList<>()).add(item);
+                    item.unresolved++;
+                }
+            }
+            if (item.unresolved == 0) {
+                ready.add(item);
+            }
+            size++;
+        }
+
+        void resolve(Collection<String> dependencies) {
+            for (String dependency : dependencies) {
+                if (!resolved.add(dependency)) {
+                    continue;
+                }
+                List<PendingItem> items = waiting.remove(dependency);
+                if (items != null) {
+                    for (PendingItem item : items) {
+                        if (--item.unresolved == 0) {
+                            ready.add(item);
+                        }
+                    }
+                }
+            }
+        }
+
+        boolean hasReady() {
+            return !ready.isEmpty();
+        }
+
+        PendingItem pollReady() {
+            PendingItem item = ready.poll();
+            if (item != null) {
+                size--;
+            }
+            return item;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void moveTo(PendingItems other) {
+            Set<PendingItem> items = Collections.newSetFromMap(new IdentityHashMap<>());
+            items.addAll(ready);
+            waiting.values().forEach(items::addAll);
+            for (PendingItem item : items) {
+                item.unresolved = 0;
+                other.add(item);
+            }
+            waiting.clear();
+            ready.clear();
+            size = 0;
+        }
+    }
+
+    // Called at flush points (see Streaming.flushBeforeBlocking) to write out the ready items straight away,
+    // when the asyncDefer directive used has an early renderer.
+    static void renderReadyEarly(Environment env) throws TemplateException, IOException {
+        AsyncRenderDeferredHtmlDirective renderer =
+                (AsyncRenderDeferredHtmlDirective) env.getCustomState(EARLY_RENDERER_STATE_KEY);
+        if (renderer != null) {
+            renderer.renderReady(env);
+        }
+    }
+
+    // Moves items pending from rendering in the fork to env, once the fork has finished.
+    static void joinFork(Environment fork, Environment env) {
+        PendingItems forkItems = (PendingItems) fork.getCustomState(PENDING_STATE_KEY);
+        if (forkItems != null && !forkItems.isEmpty()) {
+            PendingItems items = (PendingItems) env.getCustomState(PENDING_STATE_KEY);
+            if (items == null) {
+                items = new PendingItems();
+                env.setCustomState(PENDING_STATE_KEY, items);
+            }
+            forkItems.moveTo(items);
+        }
+    }
+
+    // next() blocks until an item is ready, whereas poll() doesn't.
+    interface PendingIterator extends Iterator<Map.Entry<String, TemplateDirectiveBody>> {
+        // Returns null if no item is ready yet.
+        Map.Entry<String, TemplateDirectiveBody> poll();
+    }
+
+    private static final PendingIterator NO_PENDING = new PendingIterator() {
+        @Override
+        public Map.Entry<String, TemplateDirectiveBody> poll() {
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return false;
+        }
+
+        @Override
+        public Map.Entry<String, TemplateDirectiveBody> next() {
+            throw new NoSuchElementException();
+        }
+    };
+
+    static PendingIterator getAndConsumePending(Environment env) throws TemplateModelException {
+        PendingItems pendingItems = (PendingItems) env.getCustomState(PENDING_STATE_KEY);
         if (pendingItems == null || pendingItems.isEmpty()) {
-            return Collections.emptyIterator();
+            return NO_PENDING;
         }
 
-        return new Iterator<>() {
+        return new PendingIterator() {
 
-            final Iterator<Collection<String>> queue = getFuturesState(env).getCompletionIterable().iterator();
-            final Set<String> allResolved = new HashSet<>();
-            int expectedPendingCount = pendingItems.size();
+            final TrackedModelFutures.CompletionIterator queue = getFuturesState(env).getCompletionIterator();
 
             @Override
             public boolean hasNext() {
-                return !pendingItems.isEmpty() && (queue.hasNext() || findReady().isPresent());
+                return !pendingItems.isEmpty() && (pendingItems.hasReady() || queue.hasNext());
             }
 
             @Override
             public Map.Entry<String, TemplateDirectiveBody> next() {
-                Map.Entry<String, TemplateDirectiveBody> ready;
-
-                // We only return one item at a time but one queue
-                // dependency may cause multiple pending to be ready.
-                if ((ready = nextReady()) != null) {
-                    return ready;
-                }
-
-                // The caller of this method may generate a new pending item which
-                // depends upon something previously returned from the queue.
-                // Update any new pending with those previous dependencies and potentially return one.
-                if (expectedPendingCount != pendingItems.size()) {
-                    expectedPendingCount = pendingItems.size();
-                    for (PendingItem item : pendingItems) {
-                        item.dependencies.removeAll(allResolved);
-                    }
-                    if ((ready = nextReady()) != null) {
-                        return ready;
-                    }
-                }
-
-                while (queue.hasNext()) {
-                    Collection<String> resolved = queue.next();
-                    allResolved.addAll(resolved);
-                    for (PendingItem item : pendingItems) {
-                        item.dependencies.removeAll(resolved);
-                    }
-                    if ((ready = nextReady()) != null) {
-                        return ready;
+                // One completed future may make several items ready, whereas others make none ready.
+                // Items added by the caller of this method (e.g. nested ones) are already resolved against
+                // anything previously returned from the queue.
+                while (!pendingItems.hasReady()) {
+                    if (!queue.hasNext()) {
+                        throw new IllegalStateException("Problem processing pending items queue");
                     }
+                    pendingItems.resolve(queue.next());
                 }
-
-                throw new IllegalStateException("Problem processing pending items queue");
+                return toEntry(pendingItems.pollReady());
             }
 
-            private Optional<PendingItem> findReady() {
-                return pendingItems.stream()
-                        .filter(item -> item.dependencies.isEmpty())
-                        .findAny();
+            @Override
+            public Map.Entry<String, TemplateDirectiveBody> poll() {
+                Collection<String> resolved;
+                while (!pendingItems.hasReady() && (resolved = queue.poll()) != null) {
+                    pendingItems.resolve(resolved);
+                }
+                return pendingItems.hasReady() ? toEntry(pendingItems.pollReady()) : null;
             }
 
-            private Map.Entry<String, TemplateDirectiveBody> nextReady() {
-                return findReady()
-                        .map(item -> {
-                            pendingItems.remove(item);
-                            expectedPendingCount--;
-                            return new AbstractMap.SimpleImmutableEntry<>(item.id, item.body);
-                        })
-                        .orElse(null);
+            private Map.Entry<String, TemplateDirectiveBody> toEntry(PendingItem item) {
+                return new AbstractMap.SimpleImmutableEntry<>(item.id, item.body);
             }
 
         };
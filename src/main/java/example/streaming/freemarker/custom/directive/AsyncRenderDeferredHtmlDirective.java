@@ -3,27 +3,70 @@ package example.streaming.freemarker.custom.directive;
 import static example.streaming.freemarker.custom.directive.AsyncDeferHtmlDirective.*;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import example.streaming.freemarker.custom.ExceptionAwareWriter;
+import example.streaming.freemarker.custom.FlushingWriter;
+import example.streaming.freemarker.custom.RenderMetrics;
 import freemarker.core.Environment;
 import freemarker.template.TemplateDirectiveBody;
 import freemarker.template.TemplateException;
+import freemarker.template.TemplateModelException;
 
 public class AsyncRenderDeferredHtmlDirective extends RenderDeferredHtmlDirective {
 
+    // Set whilst rendering deferred items, which shouldn't be interrupted by early rendering (see renderReady).
+    private static final Object RENDERING_STATE_KEY = new Object();
+
+    private final ExecutorService parallelRenderExecutor;
+
+    public AsyncRenderDeferredHtmlDirective() {
+        this(false, null);
+    }
+
+    public AsyncRenderDeferredHtmlDirective(boolean sharedSwapRuntime) {
+        this(sharedSwapRuntime, null);
+    }
+
+    // With a parallelRenderExecutor, bodies that are ready are each rendered in a ForkedEnvironment on it, concurrently,
+    // and written in the order they finish. Bodies that might write to a namespace are rendered sequentially instead,
+    // once the forks have finished (see ForkedEnvironment).
+    public AsyncRenderDeferredHtmlDirective(boolean sharedSwapRuntime, ExecutorService parallelRenderExecutor) {
+        super(sharedSwapRuntime);
+        this.parallelRenderExecutor = parallelRenderExecutor;
+    }
+
     @Override
     protected void execute(Environment env) throws TemplateException, IOException {
+        env.setCustomState(RENDERING_STATE_KEY, Boolean.TRUE);
+        try {
+            if (parallelRenderExecutor != null) {
+                executeInParallel(env);
+            } else {
+                executeSequentially(env);
+            }
+        } finally {
+            env.setCustomState(RENDERING_STATE_KEY, null);
+        }
+    }
+
+    private void executeSequentially(Environment env) throws TemplateException, IOException {
         Writer out = env.getOut();
 
-        Iterator<Map.Entry<String, TemplateDirectiveBody>> it = getAndConsumePending(env);
+        PendingIterator it = getAndConsumePending(env);
         while (it.hasNext()) {
             do {
-                if (Streaming.isAutoStreamingAllowed(env)) {
-                    out.flush(); // flush before blocking during iterator item access
-                }
-                render(it.next(), out);
+                Streaming.flushBeforeBlocking(env, null); // flush before blocking during iterator item access
+                render(it.next(), env, out);
             } while (it.hasNext());
 
             // Probably not necessary, but ensure new ones added due to nesting aren't missed.
@@ -31,9 +74,152 @@ public class AsyncRenderDeferredHtmlDirective extends RenderDeferredHtmlDirectiv
         }
     }
 
+    // Renders the pending items that are ready now, without waiting for any others, if the output so far ends
+    // where they can be inserted (see HtmlContext). Their fallbacks have already been written, so are swapped
+    // straight away, rather than once the rest of the page has been rendered.
+    void renderReady(Environment env) throws TemplateException, IOException {
+        Writer out = env.getOut();
+        FlushingWriter flushingWriter = FlushingWriter.find(env);
+        if (flushingWriter == null || out != flushingWriter || !flushingWriter.isSafeForInsertion()
+                || env.getCustomState(RENDERING_STATE_KEY) != null) {
+            return;
+        }
+        PendingIterator it = getAndConsumePending(env);
+        Map.Entry<String, TemplateDirectiveBody> ready = it.poll();
+        if (ready == null) {
+            return;
+        }
+
+        Streaming.beforeFutureAccess(env); // What's ready varies between requests, so isn't part of the shell
+        env.setCustomState(RENDERING_STATE_KEY, Boolean.TRUE);
+        try {
+            do {
+                render(ready, env, out);
+            } while ((ready = it.poll()) != null);
+        } finally {
+            env.setCustomState(RENDERING_STATE_KEY, null);
+        }
+    }
+
+    private void executeInParallel(Environment env) throws TemplateException, IOException {
+        Writer out = env.getOut();
+        CompletionService<Rendered> completionService = new ExecutorCompletionService<>(parallelRenderExecutor);
+        List<Future<Rendered>> rendering = new ArrayList<>();
+        try {
+            PendingIterator it = getAndConsumePending(env);
+            while (true) {
+                Map.Entry<String, TemplateDirectiveBody> ready;
+                while ((ready = it.poll()) != null) {
+                    submitOrRender(ready, completionService, rendering, env, out);
+                }
+
+                if (!rendering.isEmpty()) {
+                    // Items that become ready in the meantime are submitted once this render has been joined.
+                    Streaming.flushBeforeBlocking(env, null);
+                    joinNext(completionService, rendering, env, out);
+                } else if (it.hasNext()) {
+                    Streaming.flushBeforeBlocking(env, null); // flush before blocking during iterator item access
+                    submitOrRender(it.next(), completionService, rendering, env, out);
+                } else {
+                    // Ensure new ones added due to nesting (including by the forks, once joined) aren't missed.
+                    it = getAndConsumePending(env);
+                    if (!it.hasNext()) {
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TemplateModelException("Interrupted whilst rendering deferred content", e);
+        } finally {
+            for (Future<Rendered> future : rendering) {
+                future.cancel(true); // Only when failing
+            }
+        }
+    }
+
+    private void submitOrRender(
+            Map.Entry<String, TemplateDirectiveBody> deferred, CompletionService<Rendered> completionService,
+            List<Future<Rendered>> rendering, Environment env, Writer out)
+            throws TemplateException, IOException, InterruptedException {
+        TemplateDirectiveBody body = deferred.getValue();
+        if (!ForkedEnvironment.isSupported(body, env)) {
+            // The forks read the namespaces that this render may write to
+            while (!rendering.isEmpty()) {
+                joinNext(completionService, rendering, env, out);
+            }
+            render(deferred, env, out);
+            return;
+        }
+
+        Environment fork = ForkedEnvironment.fork(env);
+        AsyncDeferHtmlDirective.prepareFork(env, fork);
+        DeferHtmlDirective.prepareFork(env, fork);
+        rendering.add(completionService.submit(() -> {
+            long startNanos = System.nanoTime();
+            Rendered rendered = new Rendered(deferred.getKey(), fork);
+            ForkedEnvironment.render(fork, body, new ExceptionAwareWriter(rendered.content, rendered.errors));
+            rendered.renderNanos = System.nanoTime() - startNanos;
+            return rendered;
+        }));
+    }
+
+    // Waits for the next render to finish and writes it.
+    private static void joinNext(CompletionService<Rendered> completionService, List<Future<Rendered>> rendering,
+            Environment env, Writer out) throws TemplateException, IOException, InterruptedException {
+        Future<Rendered> done = completionService.take();
+        rendering.remove(done);
+        getRendered(done).join(env, out);
+    }
+
+    private static Rendered getRendered(Future<Rendered> future) throws TemplateException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TemplateModelException("Interrupted whilst rendering deferred content", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TemplateException) {
+                throw (TemplateException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new TemplateModelException("Failed to render deferred content", cause);
+        }
+    }
+
     @Override
     protected String getEndDataMarker() {
         return AsyncDeferHtmlDirective.END_DATA;
     }
 
+
+    private class Rendered {
+        final String fallbackId;
+        final Environment fork;
+        final StringWriter content = new StringWriter();
+        // Written by the TemplateExceptionHandler, which would otherwise write to the response from another thread.
+        final StringWriter errors = new StringWriter();
+        long renderNanos; // Set on the fork's thread before the Future completes
+
+        Rendered(String fallbackId, Environment fork) {
+            this.fallbackId = fallbackId;
+            this.fork = fork;
+        }
+
+        // On the thread using env.
+        void join(Environment env, Writer out) throws IOException {
+            AsyncDeferHtmlDirective.joinFork(fork, env);
+            DeferHtmlDirective.joinFork(fork, env);
+            out.write(errors.toString());
+            write(fallbackId, content.getBuffer(), env, out);
+            RenderMetrics.find(env).recordDeferredRender(renderNanos);
+        }
+    }
+
 }
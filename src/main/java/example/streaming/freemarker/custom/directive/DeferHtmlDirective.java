@@ -1,12 +1,11 @@
 package example.streaming.freemarker.custom.directive;
 
-import static freemarker.template.Configuration.*;
-
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.Writer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import freemarker.core.Environment;
@@ -40,6 +39,7 @@ public class DeferHtmlDirective implements TemplateDirectiveModel {
     private static final Object PENDING_STATE_KEY = new Object();
     static final String START_DATA = "FMD$";
     static final String END_DATA = "/FMD$";
+    private static final String FALLBACK_END = "<!--" + END_DATA + "-->";
 
     @Override
     public void execute(
@@ -54,6 +54,7 @@ public class DeferHtmlDirective implements TemplateDirectiveModel {
         if (params.size() > 1) {
             throw new TemplateModelException("This directive doesn't allow multiple parameters.");
         }
+        FragmentCacheDirective.checkNotCaching(env, "defer");
 
         if (params.isEmpty()) {
             processMacro(SHARED_FALLBACK_MACRO, null, env, body);
@@ -128,18 +129,12 @@ public class DeferHtmlDirective implements TemplateDirectiveModel {
             throws TemplateException, IOException {
         String fallbackId = getNextFallbackId(env);
         Template currentTemplate = env.getCurrentDirectiveCallPlace().getTemplate();
+        Template macroInvoke = FallbackMacroTemplates.get(buildFullMacroName(macroName, namespace), currentTemplate);
 
-        boolean squareBrackets = currentTemplate.getActualTagSyntax() == SQUARE_BRACKET_TAG_SYNTAX;
-        macroName = buildFullMacroName(macroName, namespace);
-        String macroInvoke = squareBrackets ? "[@" + macroName + " /]" : "<@" + macroName + " />";
-
-        String fallback = buildFallbackContent(macroInvoke, fallbackId);
-        env.include(new Template(
-                null, null,
-                new StringReader(fallback),
-                currentTemplate.getConfiguration(),
-                currentTemplate.getParserConfiguration(),
-                currentTemplate.getEncoding()));
+        Writer out = env.getOut();
+        out.write(buildFallbackStart(fallbackId));
+        env.include(macroInvoke);
+        out.write(FALLBACK_END);
 
         addToPending(body, fallbackId, env);
     }
@@ -154,16 +149,30 @@ public class DeferHtmlDirective implements TemplateDirectiveModel {
     }
 
     private static String buildFallbackContent(String fallback, String id) {
-        return "<!--" + START_DATA + "-->" +
-                "<template id=\"" + id + "\"></template>" + fallback +
-                "<!--" + END_DATA + "-->";
+        return buildFallbackStart(id) + fallback + FALLBACK_END;
+    }
+
+    private static String buildFallbackStart(String id) {
+        return "<!--" + START_DATA + "-->" + "<template id=\"" + id + "\"></template>";
     }
 
     private static String getNextFallbackId(Environment env) {
-        Integer counter = (Integer) env.getCustomState(ID_COUNTER_STATE_KEY);
-        counter = counter==null ? 1 : counter + 1;
-        env.setCustomState(ID_COUNTER_STATE_KEY, counter);
-        return FALLBACK_ID_PREFIX + counter;
+        return FALLBACK_ID_PREFIX + getIdCounter(env).incrementAndGet();
+    }
+
+    // Shared with forks (see ForkedEnvironment), so that their fallbacks' ids are still unique within the page.
+    private static AtomicInteger getIdCounter(Environment env) {
+        AtomicInteger counter = (AtomicInteger) env.getCustomState(ID_COUNTER_STATE_KEY);
+        if (counter == null) {
+            counter = new AtomicInteger();
+            env.setCustomState(ID_COUNTER_STATE_KEY, counter);
+        }
+        return counter;
+    }
+
+    // Call on the thread using env, before rendering anything in the fork.
+    static void prepareFork(Environment env, Environment fork) {
+        fork.setCustomState(ID_COUNTER_STATE_KEY, getIdCounter(env));
     }
 
     private static String findMacroNamespace(Macro macro, Environment env) throws TemplateModelException {
@@ -195,6 +204,14 @@ public class DeferHtmlDirective implements TemplateDirectiveModel {
         deferreds.put(fallbackId, body);
     }
 
+    // Moves items deferred whilst rendering in the fork to env, once the fork has finished.
+    static void joinFork(Environment fork, Environment env) {
+        LinkedHashMap<String, TemplateDirectiveBody> deferreds = getAndClearPendingItems(fork);
+        if (deferreds != null) {
+            deferreds.forEach((fallbackId, body) -> addToPending(body, fallbackId, env));
+        }
+    }
+
     static LinkedHashMap<String, TemplateDirectiveBody> getAndClearPendingItems(Environment env) {
         @SuppressWarnings("unchecked")
         LinkedHashMap<String, TemplateDirectiveBody> result =
@@ -0,0 +1,102 @@
+package example.streaming.freemarker.custom.directive;
+
+import static freemarker.template.Configuration.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import freemarker.core.TemplateConfiguration;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+// Compiled templates that just invoke a fallback macro, for the defer and asyncDefer directives to include.
+// They don't contain anything specific to a request (the directives write the fallback's markers and id around them),
+// so are parsed once rather than by every directive invocation.
+// They're parsed with only the Configuration's settings (plus the tag syntax used), not those of the template that
+// happened to use the macro first, and kept per Configuration (as a custom attribute) so they go when it does.
+final class FallbackMacroTemplates {
+
+    private static final int MAX_ENTRIES = 512;
+    private static final String CACHE_ATTRIBUTE = FallbackMacroTemplates.class.getName();
+
+    private FallbackMacroTemplates() {
+    }
+
+    // fullMacroName is already escaped and prefixed with its namespace, if any.
+    static Template get(String fullMacroName, Template currentTemplate) throws IOException {
+        boolean squareBrackets = currentTemplate.getActualTagSyntax() == SQUARE_BRACKET_TAG_SYNTAX;
+        Configuration configuration = currentTemplate.getConfiguration();
+        Map<Key, Template> templates = templates(configuration);
+        Key key = new Key(fullMacroName, squareBrackets);
+        synchronized (templates) {
+            Template template = templates.get(key);
+            if (template != null) {
+                return template;
+            }
+        }
+
+        TemplateConfiguration parserConfiguration = new TemplateConfiguration();
+        parserConfiguration.setTagSyntax(squareBrackets ? SQUARE_BRACKET_TAG_SYNTAX : ANGLE_BRACKET_TAG_SYNTAX);
+        parserConfiguration.setParentConfiguration(configuration);
+        String macroInvoke = squareBrackets ? "[@" + fullMacroName + " /]" : "<@" + fullMacroName + " />";
+        Template template = new Template(
+                null, null,
+                new StringReader(macroInvoke),
+                configuration,
+                parserConfiguration,
+                null);
+        synchronized (templates) {
+            templates.put(key, template);
+        }
+        return template;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Key, Template> templates(Configuration configuration) {
+        synchronized (configuration) {
+            Map<Key, Template> templates = (Map<Key, Template>) configuration.getCustomAttribute(CACHE_ATTRIBUTE);
+            if (templates == null) {
+                // Guarded by itself
+                templates = new LinkedHashMap<Key, Template>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Key, Template> eldest) {
+                        return size() > MAX_ENTRIES;
+                    }
+                };
+                configuration.setCustomAttribute(CACHE_ATTRIBUTE, templates);
+            }
+            return templates;
+        }
+    }
+
+    private static final class Key {
+        private final String fullMacroName;
+        private final boolean squareBrackets;
+
+        Key(String fullMacroName, boolean squareBrackets) {
+            this.fullMacroName = fullMacroName;
+            this.squareBrackets = squareBrackets;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return squareBrackets == key.squareBrackets && fullMacroName.equals(key.fullMacroName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fullMacroName, squareBrackets);
+        }
+    }
+
+}
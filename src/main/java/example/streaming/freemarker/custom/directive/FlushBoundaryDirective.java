@@ -33,9 +33,7 @@ public class FlushBoundaryDirective implements TemplateDirectiveModel {
         }
 
         Writer out = env.getOut();
-        if (Streaming.isAutoStreamingAllowed(env)) {
-            out.flush();
-        }
+        Streaming.flushBeforeBlocking(env, null);
 
         StringWriter tempWriter = new StringWriter();
         body.render(new ExceptionAwareWriter(tempWriter, out));
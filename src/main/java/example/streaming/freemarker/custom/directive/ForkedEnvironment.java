@@ -0,0 +1,177 @@
+package example.streaming.freemarker.custom.directive;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+import example.streaming.freemarker.custom.ShellWriter;
+import freemarker.core.Configurable;
+import freemarker.core.Environment;
+import freemarker.core.TemplateElement;
+import freemarker.template.SimpleHash;
+import freemarker.template.TemplateDirectiveBody;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateHashModel;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.utility.NullWriter;
+
+// An Environment for rendering a directive body on another thread, whilst the request's own Environment waits.
+// The fork shares the request's namespaces (macros, imports and variables) and settings, but has its own output,
+// instruction stack and local variables, and its own copy of the data model's top layer.
+// That copy is needed even though the body only reads the data model, since SimpleHash.get puts back each value it
+// wraps (e.g. a model attribute when first read), so concurrent reads of the request's own data model would race.
+// The body must only read what's shared otherwise, so bodies that might write to a namespace (#assign, #global,
+// #import, #include or #macro, including in the macros they call, see TemplateReferences.mayWriteNamespaces)
+// aren't forked, and are rendered on the request's thread once the forks have finished.
+// FreeMarker doesn't support this, so it's done with reflection on the 2.3 internals (see isSupported).
+final class ForkedEnvironment {
+
+    private static final Field[] SHARED_FIELDS;
+    private static final Field ROOT_DATA_MODEL_FIELD;
+    private static final Field SIMPLE_HASH_MAP_FIELD;
+    private static final Field PARENT_FIELD;
+    private static final Method VISIT_METHOD;
+    private static final Method SET_CURRENT_ENVIRONMENT_METHOD;
+    private static final Method GET_CHILDREN_BUFFER_METHOD;
+
+    static {
+        Field[] sharedFields = null;
+        Field rootDataModelField = null;
+        Field simpleHashMapField = null;
+        Field parentField = null;
+        Method visitMethod = null;
+        Method setCurrentEnvironmentMethod = null;
+        Method getChildrenBufferMethod = null;
+        try {
+            String[] names = {"mainNamespace", "currentNamespace", "globalNamespace", "loadedLibs", "macroToNamespaceLookup"};
+            sharedFields = new Field[names.length];
+            for (int i = 0; i < names.length; i++) {
+                sharedFields[i] = accessible(Environment.class.getDeclaredField(names[i]));
+            }
+            rootDataModelField = accessible(Environment.class.getDeclaredField("rootDataModel"));
+            simpleHashMapField = accessible(SimpleHash.class.getDeclaredField("map"));
+            parentField = accessible(Configurable.class.getDeclaredField("parent"));
+
+            Class<?> elementArrayClass = Class.forName("[Lfreemarker.core.TemplateElement;");
+            visitMethod = accessible(Environment.class.getDeclaredMethod("visit", elementArrayClass, Writer.class));
+            setCurrentEnvironmentMethod = accessible(
+                    Environment.class.getDeclaredMethod("setCurrentEnvironment", Environment.class));
+            getChildrenBufferMethod = accessible(Class.forName("freemarker.core.Environment$NestedElementTemplateDirectiveBody")
+                    .getDeclaredMethod("getChildrenBuffer"));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            sharedFields = null;
+        }
+        SHARED_FIELDS = sharedFields;
+        ROOT_DATA_MODEL_FIELD = rootDataModelField;
+        SIMPLE_HASH_MAP_FIELD = simpleHashMapField;
+        PARENT_FIELD = parentField;
+        VISIT_METHOD = visitMethod;
+        SET_CURRENT_ENVIRONMENT_METHOD = setCurrentEnvironmentMethod;
+        GET_CHILDREN_BUFFER_METHOD = getChildrenBufferMethod;
+    }
+
+    private ForkedEnvironment() {
+    }
+
+    // Whether the body can be rendered in a fork, i.e. it's a body of a directive call in a template that doesn't
+    // write to the shared namespaces. Must be called on the thread using env.
+    @SuppressWarnings("deprecation") // TemplateElement is only deprecated to mark it as internal
+    static boolean isSupported(TemplateDirectiveBody body, Environment env) {
+        if (SHARED_FIELDS == null || !GET_CHILDREN_BUFFER_METHOD.getDeclaringClass().isInstance(body)) {
+            return false;
+        }
+        try {
+            return !TemplateReferences.mayWriteNamespaces((TemplateElement[]) GET_CHILDREN_BUFFER_METHOD.invoke(body), env);
+        } catch (InvocationTargetException | IllegalAccessException e) {
+            return false;
+        }
+    }
+
+    // Must be called on the thread using env.
+    static Environment fork(Environment env) {
+        Environment fork;
+        try {
+            fork = new Environment(env.getMainTemplate(), forkDataModel(env), NullWriter.INSTANCE);
+            for (Field field : SHARED_FIELDS) {
+                field.set(fork, field.get(env));
+            }
+            PARENT_FIELD.set(fork, env); // Settings not set on the fork are inherited from env
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return fork;
+    }
+
+    // A copy of the request's data model (e.g. the model attributes), falling back to the original for anything not in
+    // it (e.g. the request's attributes, see AllHttpScopesHashModel), which doesn't write to it.
+    private static TemplateHashModel forkDataModel(Environment env) throws IllegalAccessException {
+        TemplateHashModel model = ShellWriter.unwatched((TemplateHashModel) ROOT_DATA_MODEL_FIELD.get(env));
+        if (!(model instanceof SimpleHash)) {
+            return env.getDataModel(); // Shared, so has to be safe to read concurrently
+        }
+        SimpleHash copy = new SimpleHash((Map<?, ?>) SIMPLE_HASH_MAP_FIELD.get(model),
+                ((SimpleHash) model).getObjectWrapper());
+        return new ForkedDataModel(copy, model);
+    }
+
+    // Renders the body (created by any Environment) in fork, which may be on another thread.
+    static void render(Environment fork, TemplateDirectiveBody body, Writer out) throws TemplateException, IOException {
+        Environment previous = Environment.getCurrentEnvironment();
+        try {
+            SET_CURRENT_ENVIRONMENT_METHOD.invoke(null, fork);
+            try {
+                VISIT_METHOD.invoke(fork, GET_CHILDREN_BUFFER_METHOD.invoke(body), out);
+            } finally {
+                SET_CURRENT_ENVIRONMENT_METHOD.invoke(null, previous);
+            }
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TemplateException) {
+                throw (TemplateException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static <T extends AccessibleObject> T accessible(T object) {
+        object.setAccessible(true);
+        return object;
+    }
+
+
+
+    private static final class ForkedDataModel implements TemplateHashModel {
+        private final SimpleHash copy;
+        private final TemplateHashModel original;
+
+        ForkedDataModel(SimpleHash copy, TemplateHashModel original) {
+            this.copy = copy;
+            this.original = original;
+        }
+
+        @Override
+        public TemplateModel get(String key) throws TemplateModelException {
+            TemplateModel value = copy.get(key);
+            return value != null ? value : original.get(key);
+        }
+
+        @Override
+        public boolean isEmpty() throws TemplateModelException {
+            return copy.isEmpty() && original.isEmpty();
+        }
+    }
+
+}
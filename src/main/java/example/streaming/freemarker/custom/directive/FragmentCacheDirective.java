@@ -0,0 +1,156 @@
+package example.streaming.freemarker.custom.directive;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import example.streaming.freemarker.custom.ExceptionAwareWriter;
+import example.streaming.freemarker.custom.FragmentCache;
+import freemarker.core.Environment;
+import freemarker.template.TemplateDirectiveBody;
+import freemarker.template.TemplateDirectiveModel;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateExceptionHandler;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateNumberModel;
+import freemarker.template.TemplateScalarModel;
+
+// <@cache key="weather" ttl=60 stale=30>...</@cache>
+// Outputs the body's cached HTML if there is some, without evaluating the body (or any Futures in it).
+// Otherwise the body is rendered like atom and then cached for ttl seconds, plus stale seconds during which
+// one render refreshes it whilst other requests are still served the old HTML.
+// Keys are per locale, but otherwise should include anything the body's output depends on.
+// Bodies that had a template exception (even if recovered from, e.g. an error boundary) aren't cached.
+// Bodies can't contain defer or asyncDefer, as their content is rendered outside the body, so wouldn't be replayed.
+public class FragmentCacheDirective implements TemplateDirectiveModel {
+
+    private static final String KEY_PARAM = "key";
+    private static final String TTL_PARAM = "ttl";
+    private static final String STALE_PARAM = "stale";
+    private static final Object RENDERING_STATE_KEY = new Object();
+
+    private final FragmentCache cache;
+
+    public FragmentCacheDirective(FragmentCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public void execute(Environment env, Map params, TemplateModel[] loopVars, TemplateDirectiveBody body)
+            throws TemplateException, IOException {
+        if (loopVars.length != 0) {
+            throw new TemplateModelException("This directive doesn't allow loop variables.");
+        }
+        if (body == null) {
+            throw new TemplateModelException("missing body");
+        }
+        for (Object name : params.keySet()) {
+            if (!KEY_PARAM.equals(name) && !TTL_PARAM.equals(name) && !STALE_PARAM.equals(name)) {
+                throw new TemplateModelException("Unexpected parameter " + name);
+            }
+        }
+        String key = getKey(params.get(KEY_PARAM));
+        long ttl = getSeconds(TTL_PARAM, params.get(TTL_PARAM), true);
+        long stale = getSeconds(STALE_PARAM, params.get(STALE_PARAM), false);
+
+        Streaming.beforeFutureAccess(env); // Whether cached or not, its output isn't part of the static shell
+
+        Object cacheKey = Arrays.asList(key, env.getLocale());
+        Writer out = env.getOut();
+        String html = cache.get(cacheKey);
+        if (html != null) {
+            out.write(html);
+            return;
+        }
+
+        boolean cached = false;
+        try {
+            Streaming.flushBeforeBlocking(env, null);
+
+            // FreeMarker consults the handler inside attempt blocks too, before recovering.
+            TemplateExceptionHandler exceptionHandler = env.getTemplateExceptionHandler();
+            ErrorDetectingHandler errorDetectingHandler = new ErrorDetectingHandler(exceptionHandler);
+            StringWriter tempWriter = new StringWriter();
+            Object rendering = env.getCustomState(RENDERING_STATE_KEY);
+            env.setTemplateExceptionHandler(errorDetectingHandler);
+            env.setCustomState(RENDERING_STATE_KEY, Boolean.TRUE);
+            try {
+                body.render(new ExceptionAwareWriter(tempWriter, out));
+            } finally {
+                env.setCustomState(RENDERING_STATE_KEY, rendering);
+                env.setTemplateExceptionHandler(exceptionHandler);
+            }
+
+            html = tempWriter.toString();
+            if (!errorDetectingHandler.handled) {
+                cache.put(cacheKey, html, ttl, stale, TimeUnit.SECONDS);
+                cached = true;
+            }
+            out.write(html);
+        } finally {
+            if (!cached) {
+                cache.abandon(cacheKey);
+            }
+        }
+    }
+
+    // For directives whose output wouldn't be replayed with the cached HTML.
+    static void checkNotCaching(Environment env, String directive) throws TemplateModelException {
+        if (env.getCustomState(RENDERING_STATE_KEY) != null) {
+            throw new TemplateModelException(directive + " can't be used inside cache, as its content wouldn't be cached");
+        }
+    }
+
+    private static String getKey(Object value) throws TemplateModelException {
+        if (value == null) {
+            throw new TemplateModelException("Expected parameter " + KEY_PARAM + " not found");
+        }
+        if (value instanceof TemplateScalarModel) {
+            return ((TemplateScalarModel) value).getAsString();
+        }
+        if (value instanceof TemplateNumberModel) {
+            return ((TemplateNumberModel) value).getAsNumber().toString();
+        }
+        throw new TemplateModelException(
+                "Unexpected type for param " + KEY_PARAM + ": " + value.getClass().getSimpleName());
+    }
+
+    private static long getSeconds(String name, Object value, boolean required) throws TemplateModelException {
+        if (value == null) {
+            if (required) {
+                throw new TemplateModelException("Expected parameter " + name + " not found");
+            }
+            return 0;
+        }
+        if (!(value instanceof TemplateNumberModel)) {
+            throw new TemplateModelException("Expected param " + name + " to be a number of seconds");
+        }
+        long seconds = ((TemplateNumberModel) value).getAsNumber().longValue();
+        if (seconds < 0) {
+            throw new TemplateModelException("Param " + name + " can't be negative: " + seconds);
+        }
+        return seconds;
+    }
+
+
+    private static class ErrorDetectingHandler implements TemplateExceptionHandler {
+        private final TemplateExceptionHandler delegate;
+        boolean handled;
+
+        ErrorDetectingHandler(TemplateExceptionHandler delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void handleTemplateException(TemplateException te, Environment env, Writer out)
+                throws TemplateException {
+            handled = true;
+            delegate.handleTemplateException(te, env, out);
+        }
+    }
+
+}
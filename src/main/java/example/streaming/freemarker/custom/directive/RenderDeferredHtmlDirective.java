@@ -10,6 +10,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 
 import example.streaming.freemarker.custom.ExceptionAwareWriter;
+import example.streaming.freemarker.custom.RenderMetrics;
 import freemarker.core.Environment;
 import freemarker.template.TemplateDirectiveBody;
 import freemarker.template.TemplateDirectiveModel;
@@ -19,6 +20,22 @@ import freemarker.template.TemplateModelException;
 
 public class RenderDeferredHtmlDirective implements TemplateDirectiveModel {
 
+    private static final String SWAP_FUNCTION = "FMD_swap";
+    // Shared by the defer and asyncDefer directives, so that a page using both only gets one runtime.
+    private static final Object SWAP_RUNTIME_STATE_KEY = new Object();
+
+    private final boolean sharedSwapRuntime;
+
+    public RenderDeferredHtmlDirective() {
+        this(false);
+    }
+
+    // With sharedSwapRuntime, the JavaScript that swaps each fallback for its content is sent once per response,
+    // leaving each deferred item with just a short call to it, rather than its own copy of the whole script.
+    public RenderDeferredHtmlDirective(boolean sharedSwapRuntime) {
+        this.sharedSwapRuntime = sharedSwapRuntime;
+    }
+
     @Override
     public void execute(Environment env, Map params, TemplateModel[] loopVars, TemplateDirectiveBody body)
             throws TemplateException, IOException {
@@ -39,25 +56,40 @@ public class RenderDeferredHtmlDirective implements TemplateDirectiveModel {
         LinkedHashMap<String, TemplateDirectiveBody> deferredMap = getAndClearPendingItems(env);
         while (deferredMap != null && !deferredMap.isEmpty()) {
             for (Map.Entry<String, TemplateDirectiveBody> deferred : deferredMap.entrySet()) {
-                if (Streaming.isAutoStreamingAllowed(env)) {
-                    out.flush(); // Rendering may block, so send buffered HTML to client first.
-                }
-                render(deferred, out);
+                Streaming.flushBeforeBlocking(env, null); // Rendering may block, so send buffered HTML to client first.
+                render(deferred, env, out);
             }
             deferredMap = getAndClearPendingItems(env); // May be new ones due to nesting
         }
     }
 
-    protected void render(
-            Map.Entry<String, TemplateDirectiveBody> deferred, Writer out) throws TemplateException, IOException {
+    protected void render(Map.Entry<String, TemplateDirectiveBody> deferred, Environment env, Writer out)
+            throws TemplateException, IOException {
+        long startNanos = System.nanoTime();
         StringWriter writer = new StringWriter();
         deferred.getValue().render(new ExceptionAwareWriter(writer, out));
+        write(deferred.getKey(), writer.getBuffer(), env, out);
+        RenderMetrics.find(env).recordDeferredRender(System.nanoTime() - startNanos);
+    }
 
+    // Writes the rendered content of a deferred item, which then replaces its fallback.
+    protected void write(String fallbackId, CharSequence content, Environment env, Writer out) throws IOException {
         StringBuilder builder = new StringBuilder();
-        builder.append("<template>").append(writer).append("</template>");
-        builder.append("<script>(() => {");
-        appendJavaScript(builder, deferred.getKey());
-        builder.append("})();</script>");
+        if (sharedSwapRuntime && env.getCustomState(SWAP_RUNTIME_STATE_KEY) == null) {
+            env.setCustomState(SWAP_RUNTIME_STATE_KEY, Boolean.TRUE);
+            builder.append("<script>self.").append(SWAP_FUNCTION).append(" = (fallbackId, endDataMarker) => {");
+            appendJavaScript(builder, "fallbackId", "endDataMarker");
+            builder.append("};</script>");
+        }
+        builder.append("<template>").append(content).append("</template>");
+        if (sharedSwapRuntime) {
+            builder.append("<script>").append(SWAP_FUNCTION).append("('").append(fallbackId).append("','")
+                    .append(getEndDataMarker()).append("')</script>");
+        } else {
+            builder.append("<script>(() => {");
+            appendJavaScript(builder, "'" + fallbackId + "'", "'" + getEndDataMarker() + "'");
+            builder.append("})();</script>");
+        }
 
         out.write(builder.toString());
     }
@@ -66,19 +98,20 @@ public class RenderDeferredHtmlDirective implements TemplateDirectiveModel {
     // Expect fallback to look something like:
     // <!--FMD$--><template id="fbId"></template><div>1</div><div>2</div><!--/FMD$-->
     // (with the template always empty and the fallback's nodes following it)
-    private void appendJavaScript(StringBuilder builder, String fallbackId) {
+    // The arguments are JavaScript expressions, i.e. either quoted literals or the runtime's parameter names.
+    private static void appendJavaScript(StringBuilder builder, String fallbackId, String endDataMarker) {
         builder.append("const self = document.currentScript;");
         builder.append("const contentNode = self.previousSibling;"); // template
         builder.append("contentNode.remove();"); // Detach from DOM tree, but keep a reference.
 
-        builder.append("const fb = document.getElementById('").append(fallbackId).append("');");
+        builder.append("const fb = document.getElementById(").append(fallbackId).append(");");
         builder.append("if (!fb) return;");
         builder.append("const fbParent = fb.parentNode;");
         // @formatter:off
         builder.append("let node = fb.previousSibling;"); // Start from opening comment
         builder.append("do {");
         builder.append(    "if (node.nodeType === ").append(COMMENT_NODE);
-        builder.append(            " && node.data === '").append(getEndDataMarker()).append("') {");
+        builder.append(            " && node.data === ").append(endDataMarker).append(") {");
         builder.append(        "break;");
         builder.append(    "}");
         builder.append(    "const nextNode = node.nextSibling;");
@@ -1,8 +1,12 @@
 package example.streaming.freemarker.custom.directive;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
+import example.streaming.freemarker.custom.FlushingWriter;
 import freemarker.core.Environment;
 import freemarker.template.TemplateDirectiveBody;
 import freemarker.template.TemplateDirectiveModel;
@@ -18,6 +22,34 @@ public class Streaming {
         return !disabled;
     }
 
+    // Sends the already finished content to the browser (streaming or chunked transfer-encoding)
+    // before something that may block, e.g. waiting on pending (null if not known).
+    // When rendering to a FlushingWriter, its FlushPolicy decides whether that's worthwhile.
+    // Ready asyncDefer items may be written first, if enabled (see AsyncDeferHtmlDirective.renderReadyEarly).
+    // Note: doesn't do anything in an attempt block, nor when auto-streaming is disallowed.
+    public static void flushBeforeBlocking(Environment env, Future<?> pending) throws TemplateException, IOException {
+        if (!isAutoStreamingAllowed(env)) {
+            return;
+        }
+        Writer out = env.getOut();
+        FlushingWriter flushingWriter = FlushingWriter.find(env);
+        if (flushingWriter != null && out == flushingWriter) {
+            AsyncDeferHtmlDirective.renderReadyEarly(env);
+            flushingWriter.flushBeforeBlocking(pending);
+        } else {
+            out.flush();
+        }
+    }
+
+    // Called before a Future's value is accessed (or anything else that varies between requests, such as cached
+    // fragments), which is where a page's static shell ends (see ShellWriter).
+    public static void beforeFutureAccess(Environment env) {
+        FlushingWriter flushingWriter = env == null ? null : FlushingWriter.find(env);
+        if (flushingWriter != null) {
+            flushingWriter.endShell();
+        }
+    }
+
     public static TemplateDirectiveModel disallowAutoStreamingDirective() {
         return NoAutoStreamingDirective.SINGLETON;
     }
@@ -0,0 +1,353 @@
+package example.streaming.freemarker.custom.directive;
+
+import java.io.IOException;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import freemarker.core.CallPlaceCustomDataInitializationException;
+import freemarker.core.DirectiveCallPlace;
+import freemarker.core.Environment;
+import freemarker.core.Macro;
+import freemarker.core.TemplateElement;
+import freemarker.core.TemplateObject;
+import freemarker.template.Template;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateScalarModel;
+
+// The names that a template, or the body of a directive call, refers to, found from the parsed template rather than
+// by rendering it, e.g. so asyncDefer can wait on just the futures its body uses.
+// Includes the bodies of macros that are referred to by name (followed transitively) and templates included by a
+// literal name, but not nested calls of the same directive, whose bodies are rendered separately.
+// Names only used in ways that can't be seen statically (e.g. .vars["x" + i], a namespace's macros, or Java methods
+// reading the data model) are missed, and local variables are included, so it's a best guess rather than exact.
+// FreeMarker doesn't expose expressions, so it's done with reflection on the 2.3 internals (see isSupported).
+// The parsed template's classes (TemplateElement, TemplateObject and Macro) are deprecated only to mark them as
+// internal, so the warnings are suppressed just where they're used.
+public final class TemplateReferences {
+
+    private static final Log logger = LogFactory.getLog(TemplateReferences.class);
+    private static final Object CUSTOM_DATA_KEY = TemplateReferences.class;
+    private static final Method GET_PARAMETER_COUNT_METHOD;
+    private static final Method GET_PARAMETER_VALUE_METHOD;
+    private static final Method GET_NAME_METHOD;
+    private static final Method GET_NODE_TYPE_SYMBOL_METHOD;
+    private static final Class<?> IDENTIFIER_CLASS;
+    private static final Class<?> UNIFIED_CALL_CLASS;
+    private static final Class<?> INCLUDE_CLASS;
+    // Elements that (may) put variables or macros in a namespace, or load a library into it.
+    private static final Class<?>[] NAMESPACE_WRITE_CLASSES;
+    // Guarded by itself. Weak, since a template is replaced by a new one when it's modified.
+    private static final Map<Template, List<String>> readOrders = new WeakHashMap<>();
+    // Guarded by itself, keyed by the first of the elements checked (see mayWriteNamespaces).
+    private static final Map<Object, Boolean> namespaceWrites = new WeakHashMap<>();
+
+    static {
+        Method getParameterCountMethod = null;
+        Method getParameterValueMethod = null;
+        Method getNameMethod = null;
+        Method getNodeTypeSymbolMethod = null;
+        Class<?> identifierClass = null;
+        Class<?> unifiedCallClass = null;
+        Class<?> includeClass = null;
+        Class<?>[] namespaceWriteClasses = null;
+        try {
+            Class<?> templateObjectClass = Class.forName("freemarker.core.TemplateObject");
+            getParameterCountMethod = accessible(templateObjectClass.getDeclaredMethod("getParameterCount"));
+            getParameterValueMethod = accessible(templateObjectClass.getDeclaredMethod("getParameterValue", int.class));
+            getNodeTypeSymbolMethod = accessible(templateObjectClass.getDeclaredMethod("getNodeTypeSymbol"));
+            identifierClass = Class.forName("freemarker.core.Identifier");
+            getNameMethod = accessible(identifierClass.getDeclaredMethod("getName"));
+            unifiedCallClass = Class.forName("freemarker.core.UnifiedCall");
+            includeClass = Class.forName("freemarker.core.Include");
+            namespaceWriteClasses = new Class<?>[] {
+                    Class.forName("freemarker.core.Assignment"),
+                    Class.forName("freemarker.core.AssignmentInstruction"),
+                    Class.forName("freemarker.core.BlockAssignment"),
+                    Class.forName("freemarker.core.LibraryLoad"),
+                    includeClass, // Defines the included template's macros
+                    Macro.class}; // As an element, rather than called, it's a definition
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            getParameterCountMethod = null;
+        }
+        GET_PARAMETER_COUNT_METHOD = getParameterCountMethod;
+        GET_PARAMETER_VALUE_METHOD = getParameterValueMethod;
+        GET_NAME_METHOD = getNameMethod;
+        GET_NODE_TYPE_SYMBOL_METHOD = getNodeTypeSymbolMethod;
+        IDENTIFIER_CLASS = identifierClass;
+        UNIFIED_CALL_CLASS = unifiedCallClass;
+        INCLUDE_CLASS = includeClass;
+        NAMESPACE_WRITE_CLASSES = namespaceWriteClasses;
+    }
+
+    private TemplateReferences() {
+    }
+
+    public static boolean isSupported() {
+        return GET_PARAMETER_COUNT_METHOD != null;
+    }
+
+    // For the directive call being executed in env; worked out by its first execution and then kept with the
+    // parsed template.
+    @SuppressWarnings({"unchecked", "deprecation"})
+    static Set<String> get(Environment env) throws TemplateModelException {
+        if (!isSupported()) {
+            throw new TemplateModelException("Can't find what the body refers to with this version of FreeMarker");
+        }
+        DirectiveCallPlace callPlace = env.getCurrentDirectiveCallPlace();
+        try {
+            return (Set<String>) callPlace.getOrCreateCustomData(CUSTOM_DATA_KEY,
+                    () -> Collections.unmodifiableSet(find((TemplateElement) callPlace, env)));
+        } catch (CallPlaceCustomDataInitializationException e) {
+            throw new TemplateModelException("Failed to find what the body refers to", e.getCause());
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Set<String> find(TemplateElement call, Environment env) throws ReflectiveOperationException {
+        Finder finder = new Finder(env, getCallee(call));
+        finder.visitChildren(call);
+        return finder.names;
+    }
+
+    // The names the whole template refers to, in the order they first appear (macros' bodies where they're called),
+    // which is roughly the order they'll be read in when it's rendered. Empty if not supported.
+    public static List<String> getReadOrder(Template template) {
+        if (!isSupported()) {
+            return Collections.emptyList();
+        }
+        synchronized (readOrders) {
+            List<String> names = readOrders.get(template);
+            if (names != null) {
+                return names;
+            }
+        }
+        Finder finder = new Finder(null, null);
+        try {
+            finder.visitTemplate(template);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Failed to find what template " + template.getName() + " refers to", e);
+        }
+        List<String> names = Collections.unmodifiableList(new ArrayList<>(finder.names));
+        synchronized (readOrders) {
+            readOrders.put(template, names);
+        }
+        return names;
+    }
+
+    // Whether rendering the elements (e.g. a directive's body) might write to a namespace: #assign, #global, #import,
+    // #include or #macro, in them or in the macros they call by name. Calls of macros that can't be followed (e.g.
+    // through a namespace) count as writes too, as does anything that can't be checked.
+    // Like get, worked out once and then kept with the parsed template.
+    @SuppressWarnings("deprecation")
+    static boolean mayWriteNamespaces(TemplateElement[] elements, Environment env) {
+        if (!isSupported()) {
+            return true;
+        }
+        if (elements == null || elements.length == 0) {
+            return false;
+        }
+        synchronized (namespaceWrites) {
+            Boolean writes = namespaceWrites.get(elements[0]);
+            if (writes != null) {
+                return writes;
+            }
+        }
+        Finder finder = new Finder(env, null);
+        boolean writes;
+        try {
+            for (TemplateElement element : elements) {
+                finder.visit(element);
+            }
+            writes = finder.writesNamespaces;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Failed to find whether a body writes to namespaces", e);
+            writes = true;
+        }
+        synchronized (namespaceWrites) {
+            namespaceWrites.put(elements[0], writes);
+        }
+        return writes;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static String getCallee(TemplateElement call) throws ReflectiveOperationException {
+        return ((TemplateObject) parameterValue(call, 0)).getCanonicalForm();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Object parameterValue(TemplateObject object, int index) throws ReflectiveOperationException {
+        return invoke(GET_PARAMETER_VALUE_METHOD, object, index);
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) throws ReflectiveOperationException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static <T extends AccessibleObject> T accessible(T object) {
+        object.setAccessible(true);
+        return object;
+    }
+
+
+    // Finds names within a directive call's body (with env and callee) or whole templates (without).
+    @SuppressWarnings("deprecation")
+    private static class Finder {
+        final Environment env;
+        final String callee;
+        final Set<String> names = new LinkedHashSet<>();
+        final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>()); // Macros and templates
+        final Map<String, Macro> templateMacros = new HashMap<>();
+        boolean writesNamespaces;
+
+        Finder(Environment env, String callee) {
+            this.env = env;
+            this.callee = callee;
+        }
+
+        @SuppressWarnings("unchecked") // getMacros() is a raw Map
+        void visitTemplate(Template template) throws ReflectiveOperationException {
+            if (visited.add(template)) {
+                templateMacros.putAll(template.getMacros());
+                visit(template.getRootTreeNode());
+            }
+        }
+
+        void visitChildren(TemplateElement element) throws ReflectiveOperationException {
+            for (int i = 0; i < element.getChildCount(); i++) {
+                visit(element.getChildAt(i));
+            }
+        }
+
+        void visit(Object value) throws ReflectiveOperationException {
+            if (value instanceof TemplateObject) {
+                TemplateObject object = (TemplateObject) value;
+                if (IDENTIFIER_CLASS.isInstance(object)) {
+                    identifier((String) invoke(GET_NAME_METHOD, object));
+                    return;
+                }
+                if (!writesNamespaces && isNamespaceWrite(object)) {
+                    writesNamespaces = true;
+                }
+                int count = (Integer) invoke(GET_PARAMETER_COUNT_METHOD, object);
+                for (int i = 0; i < count; i++) {
+                    visit(parameterValue(object, i));
+                }
+                if (object instanceof TemplateElement && !isNestedCall(object)) {
+                    visitChildren((TemplateElement) object);
+                }
+                if (INCLUDE_CLASS.isInstance(object)) {
+                    include(object);
+                }
+            } else if (value instanceof Collection) {
+                for (Object item : (Collection<?>) value) {
+                    visit(item);
+                }
+            } else if (value instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    visit(entry.getKey());
+                    visit(entry.getValue());
+                }
+            }
+        }
+
+        void identifier(String name) throws ReflectiveOperationException {
+            if (!names.add(name)) {
+                return;
+            }
+            Macro macro = templateMacros.get(name);
+            if (macro == null && env != null) {
+                // Not env.getVariable, which would wait on a future in the data model.
+                TemplateModel model;
+                try {
+                    model = env.getCurrentNamespace().get(name);
+                    if (model == null) {
+                        model = env.getMainNamespace().get(name);
+                    }
+                    if (model == null) {
+                        model = env.getGlobalNamespace().get(name);
+                    }
+                } catch (TemplateModelException e) {
+                    return;
+                }
+                macro = model instanceof Macro ? (Macro) model : null;
+            }
+            if (macro != null && visited.add(macro)) {
+                visitChildren(macro);
+            }
+        }
+
+        // Follows an #include whose template name is a literal, relative to the including template.
+        void include(TemplateObject include) throws ReflectiveOperationException {
+            Object nameExp = parameterValue(include, 0);
+            if (!(nameExp instanceof TemplateScalarModel)) {
+                return;
+            }
+            String name;
+            try {
+                name = ((TemplateScalarModel) nameExp).getAsString();
+            } catch (TemplateModelException e) {
+                return;
+            }
+            if (name.contains("${") || name.contains("#{")) {
+                return; // Not literal
+            }
+            Template including = include.getTemplate();
+            if (name.startsWith("/")) {
+                name = name.substring(1);
+            } else if (including.getName() != null && including.getName().contains("/")) {
+                name = including.getName().substring(0, including.getName().lastIndexOf('/') + 1) + name;
+            }
+            Template included;
+            try {
+                included = including.getConfiguration().getTemplate(name, including.getLocale(), null, true);
+            } catch (IOException e) {
+                return;
+            }
+            if (included != null) {
+                visitTemplate(included);
+            }
+        }
+
+        boolean isNamespaceWrite(TemplateObject object) throws ReflectiveOperationException {
+            for (Class<?> writeClass : NAMESPACE_WRITE_CLASSES) {
+                if (writeClass.isInstance(object)) {
+                    return !"#local".equals(invoke(GET_NODE_TYPE_SYMBOL_METHOD, object));
+                }
+            }
+            // A macro called by name is followed (see identifier), but not through a namespace or other expression.
+            return UNIFIED_CALL_CLASS.isInstance(object) && !IDENTIFIER_CLASS.isInstance(parameterValue(object, 0));
+        }
+
+        // The same directive nested in the body (its parameters are still evaluated as part of the body).
+        boolean isNestedCall(TemplateObject object) throws ReflectiveOperationException {
+            return callee != null && UNIFIED_CALL_CLASS.isInstance(object)
+                    && callee.equals(((TemplateObject) parameterValue(object, 0)).getCanonicalForm());
+        }
+    }
+
+}
@@ -1,42 +1,63 @@
 package example.streaming.service;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
-import java.util.concurrent.CompletableFuture;
+import example.streaming.SingleFlight;
+import example.streaming.config.SpringAsyncConfig;
+import example.streaming.util.future.CancellableFuture;
 
-import static java.util.concurrent.CompletableFuture.completedFuture;
-import static java.util.concurrent.CompletableFuture.failedFuture;
+import static example.streaming.util.future.CancellableFuture.completed;
+import static example.streaming.util.future.CancellableFuture.failed;
 
 @Service
 public class AsyncSlowService {
 
-    @Async
-    public CompletableFuture<String> getData1() {
+    private final SimulatedLatency data1Latency;
+    private final SimulatedLatency data2Latency;
+
+    public AsyncSlowService(
+            @Value("${example.latency.async.data1:fixed(4000)}") String data1Latency,
+            @Value("${example.latency.async.data2:fixed(3000)}") String data2Latency) {
+        this.data1Latency = SimulatedLatency.parse(data1Latency);
+        this.data2Latency = SimulatedLatency.parse(data2Latency);
+    }
+
+    @SingleFlight
+    @Async(SpringAsyncConfig.ASYNC_SLOW_SERVICE_EXECUTOR)
+    public CancellableFuture<String> getData1() {
         try {
-            Thread.sleep(4_000);
-            return completedFuture("Work done");
+            data1Latency.await();
+            return completed("Work done");
         }
         catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            return failedFuture(e);
+            return failed(e);
+        }
+        catch (RuntimeException e) {
+            return failed(e);
         }
     }
 
-    @Async
-    public CompletableFuture<String> getIntermediateData() {
-        return completedFuture("Intermediate work done");
+    @Async(SpringAsyncConfig.ASYNC_SLOW_SERVICE_EXECUTOR)
+    public CancellableFuture<String> getIntermediateData() {
+        return completed("Intermediate work done");
     }
 
-    @Async
-    public CompletableFuture<String> getData2(String param) {
+    @SingleFlight
+    @Async(SpringAsyncConfig.ASYNC_SLOW_SERVICE_EXECUTOR)
+    public CancellableFuture<String> getData2(String param) {
         try {
-            Thread.sleep(3_000);
-            return completedFuture(param);
+            data2Latency.await();
+            return completed(param);
         }
         catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            return failedFuture(e);
+            return failed(e);
+        }
+        catch (RuntimeException e) {
+            return failed(e);
         }
     }
 
@@ -1,12 +1,26 @@
 package example.streaming.service;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import example.streaming.SingleFlight;
+
 @Service
 public class BlockingSlowService {
 
+    private final SimulatedLatency data1Latency;
+    private final SimulatedLatency data2Latency;
+
+    public BlockingSlowService(
+            @Value("${example.latency.blocking.data1:fixed(3500)}") String data1Latency,
+            @Value("${example.latency.blocking.data2:fixed(3000)}") String data2Latency) {
+        this.data1Latency = SimulatedLatency.parse(data1Latency);
+        this.data2Latency = SimulatedLatency.parse(data2Latency);
+    }
+
+    @SingleFlight
     public String getData1() throws Exception {
-        Thread.sleep(3_500);
+        data1Latency.await();
         return "Work done";
     }
 
@@ -14,8 +28,9 @@ public class BlockingSlowService {
         return "Intermediate work done";
     }
 
+    @SingleFlight
     public String getData2(String param) throws Exception {
-        Thread.sleep(3_000);
+        data2Latency.await();
         return param;
     }
 
@@ -0,0 +1,147 @@
+package example.streaming.service;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for the time taken (and failures) of a call over the network, used by the example services.
+ * Created from a specification such as:
+ * <ul>
+ *     <li>{@code fixed(3500)} - always the given number of milliseconds</li>
+ *     <li>{@code log-normal(3500, 0.5)} - median milliseconds and sigma</li>
+ *     <li>{@code heavy-tail(3500, 1.5)} - median milliseconds and Pareto shape (smaller is heavier)</li>
+ * </ul>
+ * optionally followed by a failure rate, e.g. {@code log-normal(3500, 0.5) fail(0.01)}.
+ */
+public abstract class SimulatedLatency {
+
+    // Keep a sample from the heavy tail from holding a thread for longer than any sensible request.
+    private static final long MAX_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private static final Pattern SPEC = Pattern.compile(
+            "\\s*([a-z-]+)\\(\\s*([\\d.]+)\\s*(?:,\\s*([\\d.]+)\\s*)?\\)\\s*(?:fail\\(\\s*([\\d.]+)\\s*\\))?\\s*");
+
+    // Across all instances, so that calls still running once nothing is waiting for them can be spotted.
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static final LongAdder calls = new LongAdder();
+
+    private final double failureRate;
+
+    protected SimulatedLatency(double failureRate) {
+        if (failureRate < 0 || failureRate > 1) {
+            throw new IllegalArgumentException("Failure rate must be between 0 and 1");
+        }
+        this.failureRate = failureRate;
+    }
+
+    public static SimulatedLatency parse(String spec) {
+        Matcher matcher = SPEC.matcher(spec.toLowerCase(Locale.ROOT));
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid latency specification: " + spec);
+        }
+        String type = matcher.group(1);
+        long millis = (long) Double.parseDouble(matcher.group(2));
+        String shape = matcher.group(3);
+        double failureRate = matcher.group(4) == null ? 0 : Double.parseDouble(matcher.group(4));
+
+        switch (type) {
+            case "fixed":
+                requireNoShape(type, shape);
+                return fixed(millis, failureRate);
+            case "log-normal":
+                return logNormal(millis, requireShape(type, shape), failureRate);
+            case "heavy-tail":
+                return heavyTail(millis, requireShape(type, shape), failureRate);
+            default:
+                throw new IllegalArgumentException("Unknown latency distribution: " + type);
+        }
+    }
+
+    public static SimulatedLatency fixed(long millis, double failureRate) {
+        return new SimulatedLatency(failureRate) {
+            @Override
+            protected long sampleMillis(ThreadLocalRandom random) {
+                return millis;
+            }
+        };
+    }
+
+    public static SimulatedLatency logNormal(long medianMillis, double sigma, double failureRate) {
+        return new SimulatedLatency(failureRate) {
+            @Override
+            protected long sampleMillis(ThreadLocalRandom random) {
+                return Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+            }
+        };
+    }
+
+    public static SimulatedLatency heavyTail(long medianMillis, double shape, double failureRate) {
+        // Pareto distribution with its scale chosen so that the median is medianMillis.
+        double scale = medianMillis / Math.pow(2, 1 / shape);
+        return new SimulatedLatency(failureRate) {
+            @Override
+            protected long sampleMillis(ThreadLocalRandom random) {
+                return Math.round(scale / Math.pow(1 - random.nextDouble(), 1 / shape));
+            }
+        };
+    }
+
+
+    // Blocks for a sampled amount of time and then possibly fails.
+    public void await() throws InterruptedException {
+        calls.increment();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long millis = Math.min(Math.max(sampleMillis(random), 0), MAX_MILLIS);
+        if (millis > 0) {
+            inFlight.incrementAndGet();
+            try {
+                Thread.sleep(millis);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+        if (failureRate > 0 && random.nextDouble() < failureRate) {
+            throw new SimulatedFailureException(millis);
+        }
+    }
+
+    protected abstract long sampleMillis(ThreadLocalRandom random);
+
+    // Simulated calls currently waiting, e.g. for leaked work: those still running after their page has finished.
+    public static int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    // Simulated calls made so far, i.e. the downstream load.
+    public static long getCallCount() {
+        return calls.sum();
+    }
+
+
+    private static void requireNoShape(String type, String shape) {
+        if (shape != null) {
+            throw new IllegalArgumentException("Latency distribution " + type + " takes a single argument");
+        }
+    }
+
+    private static double requireShape(String type, String shape) {
+        if (shape == null) {
+            throw new IllegalArgumentException("Latency distribution " + type + " requires two arguments");
+        }
+        return Double.parseDouble(shape);
+    }
+
+
+    public static class SimulatedFailureException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SimulatedFailureException(long millis) {
+            super("Simulated downstream failure after " + millis + "ms");
+        }
+    }
+
+}
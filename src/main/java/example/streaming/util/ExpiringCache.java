@@ -0,0 +1,191 @@
+package example.streaming.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+// Values that expire, bounded by their total weight (e.g. 1 each, to bound their number) with the least recently used
+// evicted first. After its ttl, a value can still be used for its stale period whilst a single caller refreshes it,
+// so that an expiring value doesn't make every concurrent caller wait to load it at once.
+// The refresh can also be started earlier, from refreshAt (e.g. by a hit shortly before the ttl).
+// Shared by FragmentCache and ResultCache, which decide what the values are and how they're loaded.
+public class ExpiringCache<V> {
+
+    private final long maxWeight;
+    private final ToLongFunction<? super V> weigher;
+    // Whether a refresher is given the stale value too (refreshing in the background),
+    // or just told to load it (like a miss).
+    private final boolean backgroundRefresh;
+    // Guarded by itself, as is weight.
+    private final LinkedHashMap<Object, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ExpiringCache(long maxWeight, ToLongFunction<? super V> weigher, boolean backgroundRefresh) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.backgroundRefresh = backgroundRefresh;
+    }
+
+    // What the caller should do about the key: use the value (unless a miss) and/or load it (if refresh), after which
+    // it must put (or abandon) it.
+    public static final class Lookup<V> {
+        private static final Lookup<Object> MISS = new Lookup<>(null, true);
+
+        public final V value;
+        public final boolean refresh;
+
+        private Lookup(V value, boolean refresh) {
+            this.value = value;
+            this.refresh = refresh;
+        }
+
+        // Nothing usable, so the caller should load it (values may be null).
+        public boolean isMiss() {
+            return this == MISS;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public Lookup<V> get(Object key) {
+        long now = System.nanoTime();
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null) {
+                if (now - entry.expiresAt < 0) {
+                    hits.increment();
+                    return new Lookup<>(entry.value, now - entry.refreshAt >= 0 && startRefresh(entry));
+                }
+                if (now - entry.staleUntil < 0) {
+                    if (!startRefresh(entry)) {
+                        staleHits.increment();
+                        return new Lookup<>(entry.value, false);
+                    }
+                    if (backgroundRefresh) {
+                        staleHits.increment();
+                        return new Lookup<>(entry.value, true);
+                    }
+                } else {
+                    remove(key, entry);
+                }
+            }
+            misses.increment();
+            return (Lookup<V>) Lookup.MISS;
+        }
+    }
+
+    // Only the first caller to see it due refreshes it. Guarded by entries.
+    private boolean startRefresh(Entry<V> entry) {
+        if (entry.refreshing) {
+            return false;
+        }
+        entry.refreshing = true;
+        refreshes.increment();
+        return true;
+    }
+
+    // refreshAt is from now and no later than the ttl. A value heavier than the whole cache isn't kept.
+    public void put(Object key, V value, long refreshAtNanos, long ttlNanos, long staleNanos) {
+        long valueWeight = weigher.applyAsLong(value);
+        if (valueWeight > maxWeight) {
+            abandon(key);
+            return;
+        }
+        long now = System.nanoTime();
+        Entry<V> entry = new Entry<>(value, valueWeight,
+                now + Math.min(refreshAtNanos, ttlNanos), now + ttlNanos, now + ttlNanos + staleNanos);
+        synchronized (entries) {
+            Entry<V> previous = entries.put(key, entry);
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += valueWeight;
+
+            Iterator<Entry<V>> eldest = entries.values().iterator();
+            while (weight > maxWeight) {
+                weight -= eldest.next().weight;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    // The load after a get() said to refresh failed (or was cancelled), so a later caller can refresh it instead.
+    public void abandon(Object key) {
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null) {
+                entry.refreshing = false;
+            }
+        }
+    }
+
+    private void remove(Object key, Entry<V> entry) {
+        entries.remove(key);
+        weight -= entry.weight;
+    }
+
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    // Stale values used whilst being refreshed.
+    public long getStaleHitCount() {
+        return staleHits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    // Refreshes started, whether once stale or ahead of the ttl.
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getWeight() {
+        synchronized (entries) {
+            return weight;
+        }
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+
+    private static class Entry<V> {
+        final V value;
+        final long weight;
+        final long refreshAt;
+        final long expiresAt;
+        final long staleUntil;
+        boolean refreshing;
+
+        Entry(V value, long weight, long refreshAt, long expiresAt, long staleUntil) {
+            this.value = value;
+            this.weight = weight;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+            this.staleUntil = staleUntil;
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+package example.streaming.util.future;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// A bounded thread pool dedicated to one downstream dependency, so that a slow dependency
+// can only use up its own threads and not those of every other dependency.
+// Keeps counts of rejected tasks and how long tasks wait in the queue before being run.
+public class BulkheadExecutor extends ThreadPoolExecutor {
+
+    public enum SaturationPolicy {
+        // Run the task on the submitting thread, which slows down the submitter rather than failing.
+        CALLER_RUNS,
+        // Fail the submission straight away so that the caller can fall back to something else.
+        REJECT;
+
+        public static SaturationPolicy parse(String value) {
+            return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final String name;
+    private final SaturationPolicy saturationPolicy;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder callerRuns = new LongAdder();
+    private final LongAdder dequeued = new LongAdder();
+    private final LongAdder totalQueueWaitNanos = new LongAdder();
+    private final LongAccumulator maxQueueWaitNanos = new LongAccumulator(Math::max, 0);
+
+    public BulkheadExecutor(String name, int maxThreads, int queueSize,
+                            SaturationPolicy saturationPolicy, ThreadFactory threadFactory) {
+        super(maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                createQueue(queueSize), threadFactory);
+        this.name = name;
+        this.saturationPolicy = saturationPolicy;
+        allowCoreThreadTimeOut(true); // Only keep threads around whilst there's work for them.
+        setRejectedExecutionHandler(new SaturationHandler());
+    }
+
+    private static BlockingQueue<Runnable> createQueue(int queueSize) {
+        if (queueSize < 0) {
+            throw new IllegalArgumentException("Queue size must not be negative");
+        }
+        return queueSize == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueSize);
+    }
+
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new QueuedTask(command));
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable task) {
+        if (task instanceof QueuedTask) {
+            long waitNanos = System.nanoTime() - ((QueuedTask) task).queuedAt;
+            dequeued.increment();
+            totalQueueWaitNanos.add(waitNanos);
+            maxQueueWaitNanos.accumulate(waitNanos);
+        }
+        super.beforeExecute(thread, task);
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+    public SaturationPolicy getSaturationPolicy() {
+        return saturationPolicy;
+    }
+
+    public int getQueuedCount() {
+        return getQueue().size();
+    }
+
+    public int getQueueRemainingCapacity() {
+        return getQueue().remainingCapacity();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getCallerRunsCount() {
+        return callerRuns.sum();
+    }
+
+    public double getAverageQueueWaitMillis() {
+        long count = dequeued.sum();
+        return count == 0 ? 0 : totalQueueWaitNanos.sum() / (count * 1_000_000.0);
+    }
+
+    public double getMaxQueueWaitMillis() {
+        return maxQueueWaitNanos.get() / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[active=%d, queued=%d, rejected=%d, callerRuns=%d, avgQueueWait=%.1fms, maxQueueWait=%.1fms]",
+                name, getActiveCount(), getQueuedCount(), getRejectedCount(), getCallerRunsCount(),
+                getAverageQueueWaitMillis(), getMaxQueueWaitMillis());
+    }
+
+
+    private class SaturationHandler implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (saturationPolicy == SaturationPolicy.CALLER_RUNS && !executor.isShutdown()) {
+                callerRuns.increment();
+                task.run();
+            } else {
+                rejected.increment();
+                throw new RejectedExecutionException("Bulkhead " + name + " is saturated: " + BulkheadExecutor.this);
+            }
+        }
+    }
+
+    private static class QueuedTask implements Runnable {
+        final Runnable task;
+        final long queuedAt = System.nanoTime();
+
+        QueuedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+}
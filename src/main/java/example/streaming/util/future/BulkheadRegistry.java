@@ -0,0 +1,79 @@
+package example.streaming.util.future;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import example.streaming.util.future.BulkheadExecutor.SaturationPolicy;
+
+// Creates and keeps one BulkheadExecutor per name (e.g. per downstream service).
+public class BulkheadRegistry implements AutoCloseable {
+
+    private final Function<String, String> properties;
+    private final ExecutorMode threadMode;
+    private final Map<String, BulkheadExecutor> bulkheads = new ConcurrentHashMap<>();
+    // Guarded by this, as is creating bulkheads.
+    private final List<Consumer<BulkheadExecutor>> listeners = new ArrayList<>();
+
+    // Settings are looked up as <name>.max-threads, <name>.queue-size and <name>.saturation-policy,
+    // falling back to default.max-threads etc.
+    public BulkheadRegistry(Function<String, String> properties, ExecutorMode threadMode) {
+        this.properties = properties;
+        this.threadMode = threadMode;
+    }
+
+    public BulkheadExecutor get(String name) {
+        BulkheadExecutor bulkhead = bulkheads.get(name);
+        if (bulkhead != null) {
+            return bulkhead;
+        }
+        synchronized (this) {
+            bulkhead = bulkheads.get(name);
+            if (bulkhead == null) {
+                bulkhead = create(name);
+                bulkheads.put(name, bulkhead);
+                for (Consumer<BulkheadExecutor> listener : listeners) {
+                    listener.accept(bulkhead);
+                }
+            }
+            return bulkhead;
+        }
+    }
+
+    // Calls listener with each bulkhead, both those already created and any created later (e.g. to add metrics).
+    public synchronized void forEachBulkhead(Consumer<BulkheadExecutor> listener) {
+        listeners.add(listener);
+        bulkheads.values().forEach(listener);
+    }
+
+    public Collection<BulkheadExecutor> getAll() {
+        return Collections.unmodifiableCollection(bulkheads.values());
+    }
+
+    private BulkheadExecutor create(String name) {
+        int maxThreads = Integer.parseInt(property(name, "max-threads", "20"));
+        int queueSize = Integer.parseInt(property(name, "queue-size", "0"));
+        SaturationPolicy policy = SaturationPolicy.parse(property(name, "saturation-policy", "caller-runs"));
+        return new BulkheadExecutor(name, maxThreads, queueSize, policy,
+                threadMode.threadFactory("bulkhead-" + name + "-"));
+    }
+
+    private String property(String name, String key, String defaultValue) {
+        String value = properties.apply(name + '.' + key);
+        if (value == null) {
+            value = properties.apply("default." + key);
+        }
+        return value == null ? defaultValue : value;
+    }
+
+    @Override
+    public void close() {
+        bulkheads.values().forEach(BulkheadExecutor::shutdown);
+    }
+
+}
@@ -0,0 +1,127 @@
+package example.streaming.util.future;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+
+// A CompletableFuture whose cancellation stops the work behind it, rather than just completing it.
+// CompletableFuture.cancel(true) doesn't interrupt anything, so a cancelled model attribute would otherwise keep its
+// thread (and the downstream call) busy until it finished by itself.
+// Cancelling one also cancels (interrupting) the futures linked to it: the task running it when returned from an
+// @Async method (see SpringAsyncConfig), and the inner stage of thenCompose. Dependent stages aren't run once
+// cancelled, as with CompletableFuture, but cancelling a dependent doesn't cancel its source, which could be
+// shared with other stages (e.g. a model attribute that others are composed from).
+public class CancellableFuture<T> extends CompletableFuture<T> {
+
+    private final List<Future<?>> linked = new ArrayList<>(1); // Guarded by itself
+
+    public static <T> CancellableFuture<T> completed(T value) {
+        CancellableFuture<T> future = new CancellableFuture<>();
+        future.complete(value);
+        return future;
+    }
+
+    public static <T> CancellableFuture<T> failed(Throwable ex) {
+        CancellableFuture<T> future = new CancellableFuture<>();
+        future.completeExceptionally(ex);
+        return future;
+    }
+
+    // Runs function on executor, with cancellation interrupting it (or stopping it from starting).
+    public static <T> CancellableFuture<T> supply(CheckedSupplier<T> function, Executor executor) {
+        CancellableFuture<T> future = new CancellableFuture<>();
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            try {
+                future.complete(function.get());
+            } catch (Throwable ex) {
+                future.completeExceptionally(ex);
+            }
+            return null;
+        });
+        future.link(task);
+        executor.execute(task);
+        return future;
+    }
+
+    public interface CheckedSupplier<T> {
+        T get() throws Exception;
+    }
+
+
+    // Makes cancelling this future cancel the given one too, straight away if this one has already been cancelled.
+    public void link(Future<?> future) {
+        synchronized (linked) {
+            if (!isCancelled()) {
+                linked.add(future);
+                return;
+            }
+        }
+        future.cancel(true);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            List<Future<?>> toCancel;
+            synchronized (linked) {
+                toCancel = new ArrayList<>(linked);
+                linked.clear();
+            }
+            for (Future<?> future : toCancel) {
+                future.cancel(true); // Whatever mayInterruptIfRunning, since CompletableFuture ignores it
+            }
+        } else if (isDone()) {
+            synchronized (linked) {
+                linked.clear(); // Nothing left to stop
+            }
+        }
+        return cancelled;
+    }
+
+    // As CompletableFuture's, but with the inner stage linked, so that cancelling the returned future stops whichever
+    // of the two stages is running.
+    @Override
+    public <U> CancellableFuture<U> thenCompose(Function<? super T, ? extends CompletionStage<U>> fn) {
+        CancellableFuture<U> dependent = new CancellableFuture<>();
+        whenComplete((value, ex) -> {
+            if (ex != null) {
+                dependent.completeExceptionally(ex instanceof CompletionException ? ex : new CompletionException(ex));
+                return;
+            }
+            if (dependent.isDone()) {
+                return; // Cancelled, so skip the stage
+            }
+            CompletableFuture<U> inner;
+            try {
+                inner = fn.apply(value).toCompletableFuture();
+            } catch (Throwable fnEx) {
+                dependent.completeExceptionally(new CompletionException(fnEx));
+                return;
+            }
+            dependent.link(inner);
+            inner.whenComplete((innerValue, innerEx) -> {
+                if (innerEx != null) {
+                    dependent.completeExceptionally(
+                            innerEx instanceof CompletionException ? innerEx : new CompletionException(innerEx));
+                } else {
+                    dependent.complete(innerValue);
+                }
+            });
+        });
+        return dependent;
+    }
+
+    // So that thenApply etc. return CancellableFutures, and can be composed in turn.
+    @Override
+    public <U> CompletableFuture<U> newIncompleteFuture() {
+        return new CancellableFuture<>();
+    }
+
+}
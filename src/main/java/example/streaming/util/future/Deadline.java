@@ -0,0 +1,41 @@
+package example.streaming.util.future;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+// A point in time by which a request should have finished, so that every wait on its behalf can be bounded by
+// what's left of its budget rather than by a fixed timeout of its own.
+public final class Deadline {
+
+    // Request attribute holding the request's Deadline, if it has one (see DeadlineConfig).
+    public static final String KEY = "request.deadline";
+
+    private final long deadlineNanos; // In System.nanoTime terms
+
+    private Deadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    public static Deadline after(Duration budget) {
+        return new Deadline(System.nanoTime() + budget.toNanos());
+    }
+
+    public long remainingNanos() {
+        return deadlineNanos - System.nanoTime();
+    }
+
+    public boolean isExpired() {
+        return remainingNanos() <= 0;
+    }
+
+    // The shorter of the remaining budget (never negative) and timeout, in nanoseconds.
+    public long boundNanos(long timeout, TimeUnit unit) {
+        return Math.max(0, Math.min(remainingNanos(), unit.toNanos(timeout)));
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline[remaining=" + TimeUnit.NANOSECONDS.toMillis(remainingNanos()) + "ms]";
+    }
+
+}
@@ -0,0 +1,118 @@
+package example.streaming.util.future;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The kinds of ExecutorService that model attributes and @Async methods can be run on.
+public enum ExecutorMode {
+
+    // Deferred execution without concurrency (see LazyDirectExecutorService).
+    LAZY {
+        @Override
+        public ExecutorService create() {
+            return new LazyDirectExecutorService();
+        }
+    },
+    // Deferred execution, with idle threads of a bounded pool starting tasks early (see HybridLazyExecutorService).
+    HYBRID {
+        @Override
+        public ExecutorService create() {
+            return new HybridLazyExecutorService(HybridLazyExecutorService.DEFAULT_THREADS, threadFactory("hybrid-"));
+        }
+    },
+    // A platform thread per concurrently running task, with idle threads reused.
+    CACHED {
+        @Override
+        public ExecutorService create() {
+            return Executors.newCachedThreadPool();
+        }
+    },
+    // A virtual thread per task. Blocked tasks don't hold on to a carrier (OS) thread,
+    // so thousands of tasks waiting on downstream calls cost little more than their stacks on the heap.
+    VIRTUAL {
+        @Override
+        public ExecutorService create() {
+            requireVirtualThreadSupport();
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invokeExact();
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+        @Override
+        public ThreadFactory threadFactory(String namePrefix) {
+            requireVirtualThreadSupport();
+            try {
+                // Thread.ofVirtual().name(namePrefix, 1).factory()
+                Object builder = OF_VIRTUAL.invoke();
+                builder = BUILDER_NAME.invoke(builder, namePrefix, 1L);
+                return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+    };
+
+    // Looked up with method handles so that the project still builds and runs (without this mode) on Java 17.
+    private static final MethodHandle NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR;
+    private static final MethodHandle OF_VIRTUAL;
+    private static final MethodHandle BUILDER_NAME;
+    private static final MethodHandle BUILDER_FACTORY;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        MethodHandle newVirtualThreadPerTaskExecutor = null;
+        MethodHandle ofVirtual = null;
+        MethodHandle builderName = null;
+        MethodHandle builderFactory = null;
+        try {
+            newVirtualThreadPerTaskExecutor = lookup.findStatic(
+                    Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = lookup.findStatic(Thread.class, "ofVirtual",
+                    MethodType.methodType(Class.forName("java.lang.Thread$Builder$OfVirtual")));
+            builderName = lookup.findVirtual(builderClass, "name",
+                    MethodType.methodType(builderClass, String.class, long.class));
+            builderFactory = lookup.findVirtual(builderClass, "factory", MethodType.methodType(ThreadFactory.class));
+        } catch (ReflectiveOperationException e) {
+            newVirtualThreadPerTaskExecutor = null; // Before Java 21
+        }
+        NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = newVirtualThreadPerTaskExecutor;
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+    }
+
+    public abstract ExecutorService create();
+
+    // For executors that manage their own (e.g. bounded) pools. Platform threads, other than for VIRTUAL.
+    public ThreadFactory threadFactory(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> new Thread(runnable, namePrefix + counter.incrementAndGet());
+    }
+
+    // Whether tasks run when waited on, as with execute() on the submitting thread (see LazyDirectExecutorService).
+    public boolean isLazy() {
+        return this == LAZY || this == HYBRID;
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    private static void requireVirtualThreadSupport() {
+        if (!isVirtualThreadSupported()) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later, running on " + Runtime.version());
+        }
+    }
+
+}
@@ -0,0 +1,305 @@
+package example.streaming.util.future;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Shares an ExecutorService between requests, so that a page with many attributes
+// can't monopolise it whilst lighter pages queue up behind it.
+// Each request (Session) can only have a limited number of tasks in flight, with the rest waiting in its own queue.
+// When the total in flight is also limited, sessions take turns (round-robin) to submit their next task.
+// A task that waits on another task of the same session that's still queued (which may be waiting for the very slot
+// the first one holds) runs it itself instead, as LazyTask would.
+// With priority scheduling (agingNanos > 0), tasks are instead run in order of priority (lower first), both within and
+// between sessions. So that low priority tasks aren't starved, each unit of priority only counts for as long as
+// agingNanos: a task of priority p is ordered as if it was submitted p * agingNanos later than it was.
+public class FairShareScheduler {
+
+    public static final int DEFAULT_PRIORITY = 0;
+    // The session whose task the current thread is running.
+    private static final ThreadLocal<Session> RUNNING_SESSION = new ThreadLocal<>();
+
+    private final ExecutorService executorService;
+    private final int maxInFlightPerSession;
+    private final int maxInFlight;
+    private final long agingNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Sessions with queued tasks and a free slot, in the order they get to submit
+    // (round-robin, or by their next task's rank with priority scheduling).
+    private final Queue<Session> readySessions;
+    private int inFlight;
+    private long submitted; // For ordering tasks of equal rank
+
+    // A limit of zero or less means unlimited.
+    public FairShareScheduler(ExecutorService executorService, int maxInFlightPerSession, int maxInFlight) {
+        this(executorService, maxInFlightPerSession, maxInFlight, 0);
+    }
+
+    // agingNanos of zero or less disables priority scheduling.
+    public FairShareScheduler(ExecutorService executorService, int maxInFlightPerSession, int maxInFlight,
+                              long agingNanos) {
+        this.executorService = executorService;
+        this.maxInFlightPerSession = maxInFlightPerSession;
+        this.maxInFlight = maxInFlight;
+        this.agingNanos = agingNanos;
+        this.readySessions = agingNanos > 0
+                ? new PriorityQueue<>(Comparator.comparing((Session session) -> session.rankedBy, TASK_ORDER))
+                : new ArrayDeque<>();
+    }
+
+    // Changes the priority of a task submitted to a Session, unless it was given one explicitly.
+    // Only makes a difference if the task hasn't been dispatched yet. Doesn't do anything to other futures.
+    public static void prioritize(Future<?> future, int priority) {
+        if (future instanceof Task) {
+            Task<?> task = (Task<?>) future;
+            task.session.prioritize(task, priority);
+        }
+    }
+
+    // completionListener is notified when each of the session's tasks completes, including on cancellation.
+    public Session openSession(Consumer<Future<?>> completionListener) {
+        return new Session(completionListener);
+    }
+
+    public int getInFlightCount() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    private void dispatch() {
+        List<Task<?>> toRun = new ArrayList<>();
+        lock.lock();
+        try {
+            while ((maxInFlight <= 0 || inFlight < maxInFlight) && !readySessions.isEmpty()) {
+                Session session = readySessions.poll();
+                Task<?> task = session.pollRunnable();
+                if (task != null) {
+                    session.inFlight++;
+                    inFlight++;
+                    toRun.add(task);
+                }
+                session.ready = session.canDispatch();
+                if (session.ready) {
+                    session.addToReady(); // To the back, giving other sessions a turn first
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (Task<?> task : toRun) {
+            try {
+                executorService.execute(() -> {
+                    RUNNING_SESSION.set(task.session);
+                    try {
+                        task.run();
+                    } finally {
+                        RUNNING_SESSION.remove();
+                        release(task.session);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                task.fail(e);
+                release(task.session);
+            }
+        }
+    }
+
+    private void release(Session session) {
+        lock.lock();
+        try {
+            session.inFlight--;
+            inFlight--;
+            if (!session.ready && session.canDispatch()) {
+                session.ready = true;
+                session.addToReady();
+            }
+        } finally {
+            lock.unlock();
+        }
+        dispatch();
+    }
+
+    private long rank(int priority, long submittedNanos) {
+        return agingNanos > 0 ? submittedNanos + priority * agingNanos : 0;
+    }
+
+
+    public class Session {
+        private final Consumer<Future<?>> completionListener;
+        // Guarded by the scheduler's lock.
+        private final Queue<Task<?>> queued = new PriorityQueue<>(TASK_ORDER);
+        private int inFlight;
+        private boolean ready;
+        private Task<?> rankedBy; // Next task when added to readySessions
+
+        private Session(Consumer<Future<?>> completionListener) {
+            this.completionListener = completionListener;
+        }
+
+        public <T> Future<T> submit(Callable<T> callable) {
+            return submit(callable, DEFAULT_PRIORITY, false);
+        }
+
+        // An explicit priority isn't changed by prioritize.
+        public <T> Future<T> submit(Callable<T> callable, int priority) {
+            return submit(callable, priority, true);
+        }
+
+        private <T> Future<T> submit(Callable<T> callable, int priority, boolean explicitPriority) {
+            Task<T> task = new Task<>(this, Objects.requireNonNull(callable), priority, explicitPriority);
+            long now = System.nanoTime();
+            lock.lock();
+            try {
+                task.submittedNanos = now;
+                task.sequence = submitted++;
+                task.rank = rank(priority, now);
+                queued.add(task);
+                if (!ready && canDispatch()) {
+                    ready = true;
+                    addToReady();
+                } else if (ready) {
+                    rerank();
+                }
+            } finally {
+                lock.unlock();
+            }
+            dispatch();
+            return task;
+        }
+
+        private void prioritize(Task<?> task, int priority) {
+            lock.lock();
+            try {
+                if (task.explicitPriority || task.priority == priority || !queued.remove(task)) {
+                    return;
+                }
+                // The session's place in readySessions may depend on the task's rank, so mustn't change whilst in it.
+                boolean reorder = ready && agingNanos > 0;
+                if (reorder) {
+                    readySessions.remove(this);
+                }
+                task.priority = priority;
+                task.rank = rank(priority, task.submittedNanos);
+                queued.add(task);
+                if (reorder) {
+                    addToReady();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Runs the task on the current thread if it's still queued and the thread is running another of the
+        // session's tasks, which would otherwise wait on it whilst holding a slot it may need.
+        private void runIfBlocking(Task<?> task) {
+            if (RUNNING_SESSION.get() != this) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (!queued.remove(task)) {
+                    return;
+                }
+                if (ready && queued.isEmpty()) {
+                    ready = false;
+                    readySessions.remove(this);
+                } else if (ready) {
+                    rerank();
+                }
+            } finally {
+                lock.unlock();
+            }
+            task.run();
+        }
+
+        private void addToReady() {
+            rankedBy = queued.peek();
+            readySessions.add(this);
+        }
+
+        // Its next task may have changed whilst waiting for its turn.
+        private void rerank() {
+            if (agingNanos > 0 && queued.peek() != rankedBy) {
+                readySessions.remove(this);
+                addToReady();
+            }
+        }
+
+        private boolean canDispatch() {
+            return !queued.isEmpty() && (maxInFlightPerSession <= 0 || inFlight < maxInFlightPerSession);
+        }
+
+        // Skips tasks cancelled whilst queued.
+        private Task<?> pollRunnable() {
+            Task<?> task;
+            do {
+                task = queued.poll();
+            } while (task != null && task.isDone());
+            return task;
+        }
+    }
+
+    // Lowest rank first, then in the order submitted.
+    private static final Comparator<Task<?>> TASK_ORDER =
+            Comparator.comparingLong((Task<?> task) -> task.rank).thenComparingLong(task -> task.sequence);
+
+    private static class Task<T> extends FutureTask<T> {
+        final Session session;
+        final boolean explicitPriority;
+        // Guarded by the scheduler's lock.
+        int priority;
+        long submittedNanos;
+        long sequence;
+        long rank;
+
+        Task(Session session, Callable<T> callable, int priority, boolean explicitPriority) {
+            super(callable);
+            this.session = session;
+            this.priority = priority;
+            this.explicitPriority = explicitPriority;
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            session.runIfBlocking(this);
+            return super.get();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            session.runIfBlocking(this);
+            return super.get(timeout, unit);
+        }
+
+        @Override
+        protected void done() {
+            session.completionListener.accept(this);
+        }
+    }
+
+}
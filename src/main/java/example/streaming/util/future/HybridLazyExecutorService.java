@@ -0,0 +1,151 @@
+package example.streaming.util.future;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// As LazyDirectExecutorService, tasks run when get() is first invoked on them, but whilst any of a bounded
+// pool's threads are idle, they also start queued tasks early, oldest first.
+// Under light load that gives pages concurrency without any changes to controllers, and under heavy load
+// (no idle threads) it falls back to running everything on the threads that wait for it.
+// A task a pool thread has started is waited for by get() rather than being run again (see FutureTask.run).
+public class HybridLazyExecutorService extends LazyDirectExecutorService {
+
+    public static final int DEFAULT_THREADS = 20;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final ThreadPoolExecutor workers;
+    // Tasks not yet started, in submission order. Guarded by itself.
+    private final Set<HybridTask<?>> queued = new LinkedHashSet<>();
+    private final ThreadLocal<Boolean> onWorker = new ThreadLocal<>();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder promoted = new LongAdder();
+
+    public HybridLazyExecutorService() {
+        this(DEFAULT_THREADS, Executors.defaultThreadFactory());
+    }
+
+    public HybridLazyExecutorService(int maxThreads, ThreadFactory threadFactory) {
+        // No queue, so a worker is only handed a task when it's idle (or a new one can be started),
+        // otherwise the offer is dropped and the task is left for its getter.
+        workers = new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), threadFactory, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        Objects.requireNonNull(task);
+        HybridTask<T> future = new HybridTask<>(() -> {
+            if (onWorker.get() != null) {
+                promoted.increment();
+            }
+            return task.call();
+        });
+        synchronized (queued) {
+            queued.add(future);
+        }
+        submitted.increment();
+        if (!workers.isShutdown()) {
+            workers.execute(this::runQueued);
+        }
+        return future;
+    }
+    @Override
+    public Future<?> submit(Runnable task) {
+        Objects.requireNonNull(task);
+        return submit(Executors.callable(task, null));
+    }
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        Objects.requireNonNull(task);
+        return submit(Executors.callable(task, result));
+    }
+
+    // On a worker: run the oldest tasks until there are none left that haven't been started.
+    private void runQueued() {
+        onWorker.set(Boolean.TRUE);
+        try {
+            while (true) {
+                HybridTask<?> task;
+                synchronized (queued) {
+                    Iterator<HybridTask<?>> it = queued.iterator();
+                    if (!it.hasNext()) {
+                        return;
+                    }
+                    task = it.next();
+                    it.remove();
+                }
+                task.run(); // Doesn't do anything if a getter has already started it
+            }
+        } finally {
+            onWorker.remove();
+        }
+    }
+
+
+    // Tasks submitted, and how many of them were run by the pool rather than by get().
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    public long getPromotedCount() {
+        return promoted.sum();
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        workers.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        super.shutdownNow();
+        workers.shutdownNow();
+        return null;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return super.isTerminated() && workers.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        return super.awaitTermination(timeout, unit)
+                && workers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HybridLazyExecutorService[submitted=%d, promoted=%d, poolSize=%d, active=%d]",
+                getSubmittedCount(), getPromotedCount(), workers.getPoolSize(), workers.getActiveCount());
+    }
+
+
+    private class HybridTask<V> extends LazyTask<V> {
+        HybridTask(Callable<V> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void done() {
+            synchronized (queued) {
+                queued.remove(this); // Run (or cancelled) before a worker got to it
+            }
+        }
+    }
+
+}
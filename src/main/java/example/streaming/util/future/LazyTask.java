@@ -1,18 +1,47 @@
 package example.streaming.util.future;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // Non-concurrent Future that runs the Callable/Runnable when get() is invoked,
 // rather than relying upon an ExecutorService to schedule and run the task asynchronously.
 // Callable/Runnable is guaranteed to be run at most one time.
+// As the task runs on the thread calling get(timeout, unit), a watchdog cancels (interrupting) it once the
+// timeout has passed, so that the timeout still bounds how long the caller is held.
 public class LazyTask<V> extends FutureTask<V> {
 
+    private static final ScheduledThreadPoolExecutor WATCHDOG;
+    private static final int WATCHDOG_PENDING = 0;
+    private static final int WATCHDOG_CANCELLED = 1;
+    private static final int WATCHDOG_TOO_LATE = 2; // The task had already finished, or been cancelled by another
+
+    static {
+        WATCHDOG = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "lazy-task-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        WATCHDOG.setRemoveOnCancelPolicy(true);
+    }
+
+    private final RunnerTracking<V> tracking;
+
     public LazyTask(Callable<V> callable) {
-        super(callable);
+        this(new RunnerTracking<>(callable));
     }
 
     public LazyTask(Runnable runnable, V result) {
-        super(runnable, result);
+        this(new RunnerTracking<>(Executors.callable(runnable, result)));
+    }
+
+    private LazyTask(RunnerTracking<V> tracking) {
+        super(tracking);
+        this.tracking = tracking;
+    }
+
+    // How long the task took to run, or -1 if it hasn't finished running (or was cancelled before it could start).
+    public long getRunNanos() {
+        return tracking.runNanos;
     }
 
     @Override
@@ -24,7 +53,57 @@ public class LazyTask<V> extends FutureTask<V> {
     @Override
     public V get(long timeout, TimeUnit unit)
             throws InterruptedException, ExecutionException, TimeoutException {
-        run();
-        return super.get(timeout, unit);
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        if (!isDone()) {
+            if (timeout <= 0) {
+                throw new TimeoutException();
+            }
+            AtomicInteger watchdogOutcome = new AtomicInteger(WATCHDOG_PENDING);
+            ScheduledFuture<?> watchdog = WATCHDOG.schedule(
+                    () -> watchdogOutcome.set(cancel(true) ? WATCHDOG_CANCELLED : WATCHDOG_TOO_LATE),
+                    timeout, unit);
+            try {
+                run(); // Doesn't do anything if another thread (e.g. a prefetcher) has already started it
+            } finally {
+                if (!watchdog.cancel(false)) {
+                    // It's already started, so wait for whether its cancel won (which takes no time at all).
+                    while (watchdogOutcome.get() == WATCHDOG_PENDING) {
+                        Thread.onSpinWait();
+                    }
+                }
+            }
+            if (watchdogOutcome.get() == WATCHDOG_CANCELLED) {
+                if (tracking.runner == Thread.currentThread()) {
+                    // FutureTask leaves the interrupt it cancelled with for the caller, which is this thread.
+                    // Any other cancellation's interrupt (e.g. once the client has gone) is left for the caller.
+                    Thread.interrupted();
+                }
+                throw new TimeoutException();
+            }
+        }
+        return super.get(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+
+    // Records which thread ran the task, since FutureTask doesn't say whether run() did anything, and for how long.
+    private static class RunnerTracking<V> implements Callable<V> {
+        private final Callable<V> callable;
+        volatile Thread runner;
+        volatile long runNanos = -1;
+
+        RunnerTracking(Callable<V> callable) {
+            this.callable = callable;
+        }
+
+        @Override
+        public V call() throws Exception {
+            runner = Thread.currentThread();
+            long startNanos = System.nanoTime();
+            try {
+                return callable.call();
+            } finally {
+                runNanos = System.nanoTime() - startNanos;
+            }
+        }
     }
 }
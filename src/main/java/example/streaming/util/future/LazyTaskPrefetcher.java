@@ -0,0 +1,68 @@
+package example.streaming.util.future;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+// Starts a request's LazyTasks before they're first read, on a bounded pool, in the order they're expected to be read
+// (e.g. from the view template, see TemplateReferences.getReadOrder).
+// Whichever of the pool and the reader gets to a task first runs it, and the other waits for it (see FutureTask.run),
+// so a task is still only run once. Tasks that aren't expected to be read, or that don't fit in the pool,
+// are left to run lazily as before.
+public class LazyTaskPrefetcher {
+
+    private final ExecutorService executor;
+    private final int maxPerRequest;
+    private final LongAdder prefetched = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    // The executor should reject rather than queue without bound or run tasks on the caller (see BulkheadExecutor).
+    // maxPerRequest limits how many of one request's tasks are started early (0 for no limit).
+    public LazyTaskPrefetcher(ExecutorService executor, int maxPerRequest) {
+        this.executor = executor;
+        this.maxPerRequest = maxPerRequest;
+    }
+
+    // Returns how many of the model's tasks were started (or queued) early.
+    public int prefetch(List<String> readOrder, Map<String, ?> model) {
+        int started = 0;
+        for (String name : readOrder) {
+            if (maxPerRequest > 0 && started == maxPerRequest) {
+                break;
+            }
+            Object value = model.get(name);
+            if (!(value instanceof LazyTask) || ((LazyTask<?>) value).isDone()) {
+                continue;
+            }
+            try {
+                executor.execute((LazyTask<?>) value);
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                break; // The pool is busy, so the rest are run lazily.
+            }
+            prefetched.increment();
+            started++;
+        }
+        return started;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public long getPrefetchedCount() {
+        return prefetched.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LazyTaskPrefetcher[prefetched=%d, rejected=%d]", getPrefetchedCount(), getRejectedCount());
+    }
+
+}
@@ -0,0 +1,98 @@
+package example.streaming.util.future;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+
+import example.streaming.util.ExpiringCache;
+
+// Results of keyed calls (see AsyncModel.addAttribute with a ttl), bounded by their number with the least recently
+// used evicted first.
+// Within its ttl, a result is returned as an already completed future, so reading it never blocks (or flushes, see
+// DeferableObjectWrapper). For its stale period after that, it's still returned straight away whilst a single
+// background call refreshes it, and once refreshAhead of its ttl has passed, a hit starts that refresh early so that
+// a popular result needn't go stale at all.
+// Misses and refreshes go through the SingleFlightGroup, so concurrent ones make one call. Failures aren't cached.
+public class ResultCache {
+
+    private final SingleFlightGroup group;
+    private final double refreshAhead; // Fraction of the ttl, 1 or more for no refresh before going stale
+    private final long staleNanos;
+    // A refresh happens in the background, with the caller still getting the stale result.
+    private final ExpiringCache<Object> results;
+
+    public ResultCache(SingleFlightGroup group, int maxEntries, Duration stale, double refreshAhead) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Max entries must be positive");
+        }
+        if (refreshAhead <= 0) {
+            throw new IllegalArgumentException("Refresh ahead must be positive");
+        }
+        this.group = group;
+        this.refreshAhead = refreshAhead;
+        this.staleNanos = stale.toNanos();
+        this.results = new ExpiringCache<>(maxEntries, result -> 1, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> CancellableFuture<T> get(Object key, Duration ttl, Callable<T> callable) {
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("TTL must be positive");
+        }
+        ExpiringCache.Lookup<Object> lookup = results.get(key);
+        if (lookup.isMiss()) {
+            return load(key, ttl, callable);
+        }
+        if (lookup.refresh) {
+            load(key, ttl, callable); // Nothing waits for it, so it isn't cancelled with the request
+        }
+        return CancellableFuture.completed((T) lookup.value);
+    }
+
+    // Stored from the shared execution rather than this caller's future, so that it's still cached for the others
+    // if this caller cancels.
+    private <T> CancellableFuture<T> load(Object key, Duration ttl, Callable<T> callable) {
+        return group.submit(key, callable, (value, ex) -> {
+            if (ex == null) {
+                long ttlNanos = ttl.toNanos();
+                results.put(key, value, (long) (ttlNanos * Math.min(refreshAhead, 1)), ttlNanos, staleNanos);
+            } else {
+                results.abandon(key); // Failed or cancelled, so a stale entry can be refreshed by a later caller
+            }
+        });
+    }
+
+
+    public long getHitCount() {
+        return results.getHitCount();
+    }
+
+    // Stale results returned whilst being refreshed.
+    public long getStaleHitCount() {
+        return results.getStaleHitCount();
+    }
+
+    public long getMissCount() {
+        return results.getMissCount();
+    }
+
+    // Background refreshes started, whether by a stale hit or ahead of the ttl.
+    public long getRefreshCount() {
+        return results.getRefreshCount();
+    }
+
+    public long getEvictionCount() {
+        return results.getEvictionCount();
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ResultCache[entries=%d/%d, hits=%d, staleHits=%d, misses=%d, refreshes=%d, evictions=%d]",
+                size(), results.getMaxWeight(), getHitCount(), getStaleHitCount(), getMissCount(), getRefreshCount(),
+                getEvictionCount());
+    }
+
+}
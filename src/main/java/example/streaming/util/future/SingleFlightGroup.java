@@ -0,0 +1,216 @@
+package example.streaming.util.future;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+// Coalesces concurrent calls with the same key, across requests, into one execution whose result (or failure) they
+// all get, so that a traffic spike on a popular page makes one downstream call per distinct key rather than per view.
+// Each caller gets its own future, and the execution is only cancelled (interrupting it) once every caller's
+// future has been cancelled. Only calls made whilst one is in flight are coalesced; nothing is cached afterwards.
+public class SingleFlightGroup {
+
+    private final Executor executor;
+    private final Map<Object, Flight<?>> flights = new HashMap<>(); // Guarded by itself
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    // Callables are run on executor, rather than on the first caller's thread, so that they keep running
+    // for the others if that caller goes away. That's only as long as executor has room though: if it runs saturated
+    // work on the caller's thread (e.g. a caller-runs bulkhead), the first caller is held until the call is done.
+    public SingleFlightGroup(Executor executor) {
+        this.executor = executor;
+    }
+
+    public <T> CancellableFuture<T> submit(Object key, Callable<T> callable) {
+        return join(key, () -> CancellableFuture.supply(callable::call, executor), null);
+    }
+
+    // As above, with whenExecuted called with the shared result (or failure) even if the caller's own future has
+    // been cancelled in the meantime, e.g. to cache it for the other callers.
+    public <T> CancellableFuture<T> submit(Object key, Callable<T> callable,
+                                           BiConsumer<? super T, ? super Throwable> whenExecuted) {
+        return join(key, () -> CancellableFuture.supply(callable::call, executor), whenExecuted);
+    }
+
+    // For work that's already asynchronous, e.g. an @Async method: start is only called when nothing is in flight
+    // for the key, and cancelling the future it returns should stop the work (see CancellableFuture).
+    public <T> CancellableFuture<T> submitAsync(Object key, Supplier<? extends CompletableFuture<T>> start) {
+        return join(key, start, null);
+    }
+
+    // Waits for the shared result on the calling thread. Interrupting the caller only stops waiting, unless it's
+    // the last one waiting.
+    public <T> T call(Object key, Callable<T> callable) throws Exception {
+        CancellableFuture<T> future = submit(key, callable);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CancellableFuture<T> join(Object key, Supplier<? extends CompletableFuture<T>> start,
+                                          BiConsumer<? super T, ? super Throwable> whenExecuted) {
+        Flight<T> flight;
+        boolean started = false;
+        synchronized (flights) {
+            flight = (Flight<T>) flights.get(key);
+            if (flight == null) {
+                flight = new Flight<>(key);
+                flights.put(key, flight);
+                started = true;
+            }
+            flight.waiters++;
+        }
+        if (whenExecuted != null) {
+            flight.whenComplete(whenExecuted);
+        }
+        if (started) {
+            executions.increment();
+            CompletableFuture<T> execution;
+            try {
+                execution = start.get();
+            } catch (RuntimeException | Error e) {
+                flight.completeExceptionally(e);
+                throw e;
+            }
+            flight.start(execution);
+        } else {
+            coalesced.increment();
+        }
+        return flight.newWaiter();
+    }
+
+    // Executions, and calls that shared one rather than starting their own.
+    public long getExecutionCount() {
+        return executions.sum();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    public int getInFlightCount() {
+        synchronized (flights) {
+            return flights.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SingleFlightGroup[executions=%d, coalesced=%d, inFlight=%d]",
+                getExecutionCount(), getCoalescedCount(), getInFlightCount());
+    }
+
+
+    // The shared result, completed by the execution. Waiters are completed from it.
+    private class Flight<T> extends CompletableFuture<T> {
+        final Object key;
+        int waiters; // Guarded by flights
+        private CompletableFuture<T> execution;
+
+        Flight(Object key) {
+            this.key = key;
+        }
+
+        void start(CompletableFuture<T> execution) {
+            boolean abandoned;
+            synchronized (flights) {
+                this.execution = execution;
+                abandoned = waiters == 0; // Left (see leave) before there was an execution to cancel
+            }
+            if (abandoned) {
+                execution.cancel(true);
+            }
+            execution.whenComplete((value, ex) -> {
+                if (ex != null) {
+                    completeExceptionally(ex);
+                } else {
+                    complete(value);
+                }
+            });
+        }
+
+        CancellableFuture<T> newWaiter() {
+            Waiter<T> waiter = new Waiter<>(this);
+            whenComplete((value, ex) -> {
+                if (ex != null) {
+                    waiter.completeExceptionally(ex);
+                } else {
+                    waiter.complete(value);
+                }
+            });
+            return waiter;
+        }
+
+        void leave() {
+            CompletableFuture<T> toCancel = null;
+            synchronized (flights) {
+                if (--waiters == 0 && !isDone()) {
+                    flights.remove(key, this); // So later callers start afresh rather than join a cancelled one
+                    toCancel = execution;
+                }
+            }
+            if (toCancel != null) {
+                toCancel.cancel(true);
+            }
+        }
+
+        @Override
+        public boolean complete(T value) {
+            removeFlight();
+            return super.complete(value);
+        }
+
+        @Override
+        public boolean completeExceptionally(Throwable ex) {
+            removeFlight();
+            return super.completeExceptionally(ex);
+        }
+
+        private void removeFlight() {
+            synchronized (flights) {
+                flights.remove(key, this);
+            }
+        }
+    }
+
+    // A caller's view of a flight: cancelling it just means that caller no longer needs the result.
+    private static class Waiter<T> extends CancellableFuture<T> {
+        private final Flight<T> flight;
+        private final AtomicBoolean left = new AtomicBoolean();
+
+        Waiter(Flight<T> flight) {
+            this.flight = flight;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            // cancel() also returns true when it's already been cancelled, so only leave the first time
+            if (cancelled && left.compareAndSet(false, true)) {
+                flight.leave();
+            }
+            return cancelled;
+        }
+    }
+
+}
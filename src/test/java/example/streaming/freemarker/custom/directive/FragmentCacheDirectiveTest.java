@@ -0,0 +1,92 @@
+package example.streaming.freemarker.custom.directive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import example.streaming.freemarker.custom.FragmentCache;
+import example.streaming.freemarker.custom.HtmlStreamTemplateExceptionHandlers;
+import freemarker.cache.ClassTemplateLoader;
+import freemarker.core.HTMLOutputFormat;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateScalarModel;
+
+class FragmentCacheDirectiveTest {
+
+    private FragmentCache cache;
+    private Configuration configuration;
+
+    @BeforeEach
+    void setUp() {
+        cache = new FragmentCache(1024 * 1024);
+        configuration = new Configuration(Configuration.VERSION_2_3_32);
+        configuration.setTemplateLoader(new ClassTemplateLoader(getClass(), "/templates"));
+        configuration.setOutputFormat(HTMLOutputFormat.INSTANCE);
+        configuration.setLogTemplateExceptions(false);
+        configuration.setTemplateExceptionHandler(HtmlStreamTemplateExceptionHandlers.JS_ENHANCED_HTML_DEBUG_HANDLER);
+        configuration.setAttemptExceptionReporter((te, env) -> { });
+        configuration.setSharedVariable("cache", new FragmentCacheDirective(cache));
+        configuration.setSharedVariable("isAutoStreamingAllowed", Streaming.checkAutoStreamingAllowedModel());
+    }
+
+    @Test
+    void cachesBodyWithoutErrors() throws Exception {
+        Template template = template("<@cache key=\"ok\" ttl=60><div>${greeting}</div></@cache>");
+        Map<String, Object> model = new HashMap<>();
+        model.put("greeting", "Hello");
+
+        assertEquals("<div>Hello</div>", render(template, model));
+        model.put("greeting", "Changed");
+        assertEquals("<div>Hello</div>", render(template, model));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    // The error boundaries recover with #attempt, so nothing is rethrown to the directive.
+    @Test
+    void doesNotCacheErrorBoundaryFallbacks() throws Exception {
+        Template template = template("<@cache key=\"page\" ttl=60><#include \"extras/error_boundaries.ftlh\"></@cache>");
+        Map<String, Object> model = new HashMap<>();
+        model.put("throwsException", (TemplateScalarModel) () -> {
+            throw new TemplateModelException("Catch me!!!");
+        });
+
+        String html = render(template, model);
+        assertTrue(html.contains("my general error fallback macro"), html);
+        assertTrue(html.contains("Page finished!"), html);
+
+        render(template, model);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    // An earlier error on the page mustn't hide the body's own (FreeMarker rethrows an exception it has just handled).
+    @Test
+    void doesNotCacheAfterEarlierRecoveredError() throws Exception {
+        Template template = template("<#attempt>${missing}<#recover>first</#attempt>" +
+                "<@cache key=\"after\" ttl=60><#attempt>${alsoMissing}<#recover>second</#attempt></@cache>");
+
+        assertEquals("firstsecond", render(template, new HashMap<>()));
+        render(template, new HashMap<>());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    private Template template(String source) throws Exception {
+        return new Template("test", new StringReader(source), configuration);
+    }
+
+    private String render(Template template, Map<String, Object> model) throws Exception {
+        StringWriter out = new StringWriter();
+        template.process(model, out);
+        return out.toString();
+    }
+
+}
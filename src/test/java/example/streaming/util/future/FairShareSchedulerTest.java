@@ -0,0 +1,73 @@
+package example.streaming.util.future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class FairShareSchedulerTest {
+
+    private static final long AGING_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    // The session is ordered by its head task, whose priority changes whilst other sessions are waiting for a slot.
+    @Test
+    void reprioritisingHeadTaskReordersSessions() throws Exception {
+        FairShareScheduler scheduler = new FairShareScheduler(executorService, 1, 1, AGING_NANOS);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.openSession(future -> { }).submit(() -> release.await(10, TimeUnit.SECONDS));
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch finished = new CountDownLatch(3);
+        Future<?> a = submit(scheduler, "a", order, finished);
+        submit(scheduler, "b", order, finished);
+        submit(scheduler, "c", order, finished);
+        FairShareScheduler.prioritize(a, 20);
+
+        release.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("b", "c", "a"), order);
+    }
+
+    @Test
+    void reprioritisingHeadTaskAheadOfOtherSessions() throws Exception {
+        FairShareScheduler scheduler = new FairShareScheduler(executorService, 1, 1, AGING_NANOS);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.openSession(future -> { }).submit(() -> release.await(10, TimeUnit.SECONDS));
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch finished = new CountDownLatch(3);
+        submit(scheduler, "a", order, finished);
+        submit(scheduler, "b", order, finished);
+        Future<?> c = submit(scheduler, "c", order, finished);
+        FairShareScheduler.prioritize(c, -20);
+
+        release.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("c", "a", "b"), order);
+    }
+
+    // Each in its own session.
+    private static Future<?> submit(FairShareScheduler scheduler, String name, List<String> order,
+                                    CountDownLatch finished) {
+        return scheduler.openSession(future -> finished.countDown()).submit(() -> order.add(name));
+    }
+
+}